@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) Olivier Cornu 2004-2009 <o.cornu@gmail.com>
+ *
+ * This is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.osql;
+
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+
+/**
+ * Reads and writes a field of stored objects.
+ * <p>
+ * Method handles are resolved once per column, and invoked exactly, without
+ * the access checks and boxing of reflective calls. Held in instance fields,
+ * they are not constants to the JIT, which calls them through rather than
+ * inlining them as plain field accesses. Where the JVM refuses them, the
+ * accessor falls back to reflection.
+ * <p>
+ * Typed methods (<code>getInt</code>, <code>setInt</code>...) must only be
+ * called for fields of that exact type.
+ */
+final class Accessor {
+
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+
+	final Field field;
+	// Typed as the field, with an Object receiver; null to use reflection
+	private final MethodHandle getter;
+	private final MethodHandle setter;
+	// Typed Object, with an Object receiver
+	private final MethodHandle boxedGetter;
+	private final MethodHandle boxedSetter;
+
+
+	/**
+	 * @param field	an accessible field
+	 */
+	Accessor (Field field) {
+		this.field = field;
+		Class t = field.getType();
+		MethodHandle g, s;
+		try {
+			g = LOOKUP.unreflectGetter(field).asType(MethodType.methodType(t, Object.class));
+			s = LOOKUP.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, t));
+		} catch (IllegalAccessException e) {
+			g = s = null;
+		} catch (RuntimeException e) {
+			// Module restrictions
+			g = s = null;
+		}
+		this.getter = g;
+		this.setter = s;
+		this.boxedGetter = g==null ? null : g.asType(MethodType.methodType(Object.class, Object.class));
+		this.boxedSetter = s==null ? null : s.asType(MethodType.methodType(void.class, Object.class, Object.class));
+	}
+
+
+	/**
+	 * Returns whether method handles are used.
+	 */
+	boolean isCompiled () {
+		return getter!=null;
+	}
+
+
+	Object get (Object o)
+	throws IllegalAccessException {
+		if (boxedGetter==null)
+			return field.get(o);
+		try {
+			return (Object)boxedGetter.invokeExact(o);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+	void set (Object o, Object v)
+	throws IllegalAccessException {
+		if (boxedSetter==null) {
+			field.set(o, v);
+			return;
+		}
+		try {
+			boxedSetter.invokeExact(o, v);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+
+	boolean getBoolean (Object o)
+	throws IllegalAccessException {
+		if (getter==null)
+			return field.getBoolean(o);
+		try {
+			return (boolean)getter.invokeExact(o);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+	void setBoolean (Object o, boolean v)
+	throws IllegalAccessException {
+		if (setter==null) {
+			field.setBoolean(o, v);
+			return;
+		}
+		try {
+			setter.invokeExact(o, v);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+
+	byte getByte (Object o)
+	throws IllegalAccessException {
+		if (getter==null)
+			return field.getByte(o);
+		try {
+			return (byte)getter.invokeExact(o);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+	void setByte (Object o, byte v)
+	throws IllegalAccessException {
+		if (setter==null) {
+			field.setByte(o, v);
+			return;
+		}
+		try {
+			setter.invokeExact(o, v);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+
+	short getShort (Object o)
+	throws IllegalAccessException {
+		if (getter==null)
+			return field.getShort(o);
+		try {
+			return (short)getter.invokeExact(o);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+	void setShort (Object o, short v)
+	throws IllegalAccessException {
+		if (setter==null) {
+			field.setShort(o, v);
+			return;
+		}
+		try {
+			setter.invokeExact(o, v);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+
+	char getChar (Object o)
+	throws IllegalAccessException {
+		if (getter==null)
+			return field.getChar(o);
+		try {
+			return (char)getter.invokeExact(o);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+	void setChar (Object o, char v)
+	throws IllegalAccessException {
+		if (setter==null) {
+			field.setChar(o, v);
+			return;
+		}
+		try {
+			setter.invokeExact(o, v);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+
+	int getInt (Object o)
+	throws IllegalAccessException {
+		if (getter==null)
+			return field.getInt(o);
+		try {
+			return (int)getter.invokeExact(o);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+	void setInt (Object o, int v)
+	throws IllegalAccessException {
+		if (setter==null) {
+			field.setInt(o, v);
+			return;
+		}
+		try {
+			setter.invokeExact(o, v);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+
+	long getLong (Object o)
+	throws IllegalAccessException {
+		if (getter==null)
+			return field.getLong(o);
+		try {
+			return (long)getter.invokeExact(o);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+	void setLong (Object o, long v)
+	throws IllegalAccessException {
+		if (setter==null) {
+			field.setLong(o, v);
+			return;
+		}
+		try {
+			setter.invokeExact(o, v);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+
+	float getFloat (Object o)
+	throws IllegalAccessException {
+		if (getter==null)
+			return field.getFloat(o);
+		try {
+			return (float)getter.invokeExact(o);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+	void setFloat (Object o, float v)
+	throws IllegalAccessException {
+		if (setter==null) {
+			field.setFloat(o, v);
+			return;
+		}
+		try {
+			setter.invokeExact(o, v);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+
+	double getDouble (Object o)
+	throws IllegalAccessException {
+		if (getter==null)
+			return field.getDouble(o);
+		try {
+			return (double)getter.invokeExact(o);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+	void setDouble (Object o, double v)
+	throws IllegalAccessException {
+		if (setter==null) {
+			field.setDouble(o, v);
+			return;
+		}
+		try {
+			setter.invokeExact(o, v);
+		} catch (Throwable t) {
+			throw unchecked(t);
+		}
+	}
+
+
+	/**
+	 * Returns a handle creating instances through this empty constructor,
+	 * typed <code>()Object</code>, or <code>null</code> if the JVM refuses
+	 * it.
+	 */
+	static MethodHandle constructor (Constructor c) {
+		try {
+			return LOOKUP.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Returns a handle calling this <code>_init_(Connection)</code> method,
+	 * typed <code>(Object,Connection)void</code>, or <code>null</code> if
+	 * the JVM refuses it.
+	 */
+	static MethodHandle initializer (Method m) {
+		try {
+			return LOOKUP.unreflect(m).asType(MethodType.methodType(void.class, Object.class, Connection.class));
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Rethrows unchecked exceptions thrown by a handle. Field accesses do
+	 * not throw checked ones.
+	 */
+	private static RuntimeException unchecked (Throwable t) {
+		if (t instanceof RuntimeException)
+			return (RuntimeException)t;
+		if (t instanceof Error)
+			throw (Error)t;
+		return new OSQLException(t);
+	}
+
+
+}
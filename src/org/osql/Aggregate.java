@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) Olivier Cornu 2004-2009 <o.cornu@gmail.com>
+ *
+ * This is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.osql;
+
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+/**
+ * The result of {@link Connection#aggregate(Class, String, String[], String[])}:
+ * one row per group, holding the values of the grouping fields and of the
+ * aggregate expressions.
+ * <p>
+ * Values are held by column: integral ones in a <code>long[]</code>,
+ * decimal ones in a <code>double[]</code>, and others (e.g. the minimum of
+ * a string field) as objects.
+ */
+public final class Aggregate {
+
+
+	private final String[] groupBy;
+	private final String[] expressions;
+	private int size;
+	/**
+	 * Values of grouping fields, by field then row.
+	 */
+	private Object[][] groups;
+	/**
+	 * Values of expressions: a <code>long[]</code>, <code>double[]</code>
+	 * or <code>Object[]</code> per expression.
+	 */
+	private final Object[] columns;
+	private final BitSet[] nulls;
+
+
+	/**
+	 * Reads all rows of this result set: grouping fields first, then
+	 * expressions.
+	 */
+	Aggregate (String[] groupBy, String[] expressions, ResultSet rs)
+	throws SQLException {
+		this.groupBy = groupBy;
+		this.expressions = expressions;
+		int capacity = 16;
+		this.groups = new Object[groupBy.length][capacity];
+		this.columns = new Object[expressions.length];
+		this.nulls = new BitSet[expressions.length];
+		ResultSetMetaData md = rs.getMetaData();
+		for (int i=0; i<expressions.length; i++) {
+			switch (md.getColumnType(groupBy.length+i+1)) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+				columns[i] = new long[capacity];
+				break;
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				columns[i] = new double[capacity];
+				break;
+			default:
+				columns[i] = new Object[capacity];
+			}
+			nulls[i] = new BitSet();
+		}
+		while (rs.next()) {
+			if (size==capacity) {
+				capacity *= 2;
+				grow(capacity);
+			}
+			for (int k=0; k<groupBy.length; k++)
+				groups[k][size] = rs.getObject(k+1);
+			for (int i=0; i<expressions.length; i++) {
+				int col = groupBy.length+i+1;
+				Object c = columns[i];
+				if (c instanceof long[])
+					((long[])c)[size] = rs.getLong(col);
+				else if (c instanceof double[])
+					((double[])c)[size] = rs.getDouble(col);
+				else
+					((Object[])c)[size] = rs.getObject(col);
+				if (rs.wasNull())
+					nulls[i].set(size);
+			}
+			size++;
+		}
+	}
+
+
+	private void grow (int capacity) {
+		for (int k=0; k<groups.length; k++)
+			groups[k] = Arrays.copyOf(groups[k], capacity);
+		for (int i=0; i<columns.length; i++) {
+			Object c = columns[i];
+			if (c instanceof long[])
+				columns[i] = Arrays.copyOf((long[])c, capacity);
+			else if (c instanceof double[])
+				columns[i] = Arrays.copyOf((double[])c, capacity);
+			else
+				columns[i] = Arrays.copyOf((Object[])c, capacity);
+		}
+	}
+
+
+	/**
+	 * Returns the number of groups (1 without grouping fields).
+	 */
+	public int size () {
+		return size;
+	}
+
+
+	/**
+	 * Returns the value of grouping field <code>k</code> for this group.
+	 */
+	public Object getGroup (int row, int k) {
+		check(row);
+		return groups[k][row];
+	}
+
+
+	/**
+	 * Returns whether expression <code>i</code> is <code>NULL</code> for
+	 * this group (e.g. the sum of no value).
+	 */
+	public boolean isNull (int row, int i) {
+		check(row);
+		return nulls[i].get(row);
+	}
+
+
+	/**
+	 * Returns the value of expression <code>i</code> for this group,
+	 * <code>0</code> if <code>NULL</code>.
+	 */
+	public long getLong (int row, int i) {
+		check(row);
+		Object c = columns[i];
+		if (c instanceof long[])
+			return ((long[])c)[row];
+		if (c instanceof double[])
+			return (long)((double[])c)[row];
+		Object v = ((Object[])c)[row];
+		if (v==null)
+			return 0;
+		if (!(v instanceof Number))
+			throw new OSQLException("Not a number: "+expressions[i]);
+		return ((Number)v).longValue();
+	}
+
+
+	/**
+	 * Returns the value of expression <code>i</code> for this group,
+	 * <code>0</code> if <code>NULL</code>.
+	 */
+	public double getDouble (int row, int i) {
+		check(row);
+		Object c = columns[i];
+		if (c instanceof double[])
+			return ((double[])c)[row];
+		if (c instanceof long[])
+			return ((long[])c)[row];
+		Object v = ((Object[])c)[row];
+		if (v==null)
+			return 0;
+		if (!(v instanceof Number))
+			throw new OSQLException("Not a number: "+expressions[i]);
+		return ((Number)v).doubleValue();
+	}
+
+
+	/**
+	 * Returns the value of expression <code>i</code> for this group,
+	 * boxed, <code>null</code> if <code>NULL</code>.
+	 */
+	public Object get (int row, int i) {
+		check(row);
+		if (nulls[i].get(row))
+			return null;
+		Object c = columns[i];
+		if (c instanceof long[])
+			return Long.valueOf(((long[])c)[row]);
+		if (c instanceof double[])
+			return Double.valueOf(((double[])c)[row]);
+		return ((Object[])c)[row];
+	}
+
+
+	private void check (int row) {
+		if (row<0 || row>=size)
+			throw new IndexOutOfBoundsException("Row: "+row+", size: "+size);
+	}
+
+
+	public String toString () {
+		StringBuffer sb = new StringBuffer("Aggregate: ");
+		sb.append(Arrays.asList(expressions));
+		if (groupBy.length>0) {
+			sb.append(" by ");
+			sb.append(Arrays.asList(groupBy));
+		}
+		sb.append(", ");
+		sb.append(size);
+		sb.append(" group(s)");
+		return sb.toString();
+	}
+
+
+}
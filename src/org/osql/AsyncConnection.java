@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) Olivier Cornu 2004-2009 <o.cornu@gmail.com>
+ *
+ * This is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.osql;
+
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Asynchronous facade of a {@link Connection}.
+ * <p>
+ * Every operation runs as a task of its own and returns a
+ * <code>CompletableFuture</code> of its result. Tasks run on virtual threads
+ * when the JVM supports them, on a pool of daemon threads otherwise.
+ * <p>
+ * At most <code>maxInFlight</code> operations run at once on the underlying
+ * <code>Connection</code>, whatever the number of
+ * <code>AsyncConnection</code>s built on it (the first one sets the limit):
+ * further operations are queued, and started as running ones complete.
+ * Callers never wait. Transactions are bound to threads, hence not available
+ * through this facade.
+ */
+public class AsyncConnection {
+
+
+	/**
+	 * The default maximum number of operations running at once.
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+	/**
+	 * Shared executor, started on first use.
+	 */
+	private static ExecutorService defaultExecutor;
+
+
+	private final Connection conn;
+	private final Executor executor;
+	private final Throttle throttle;
+
+
+	public AsyncConnection (Connection conn) {
+		this(conn, DEFAULT_MAX_IN_FLIGHT, null);
+	}
+
+	public AsyncConnection (Connection conn, int maxInFlight) {
+		this(conn, maxInFlight, null);
+	}
+
+	public AsyncConnection (Connection conn, int maxInFlight, Executor executor) {
+		if (conn==null)
+			throw new OSQLException("NULL connection not allowed.");
+		if (maxInFlight<1)
+			throw new OSQLException("Invalid maximum number of operations in flight: "+maxInFlight);
+		this.conn = conn;
+		this.executor = executor!=null ? executor : defaultExecutor();
+		synchronized (conn) {
+			if (conn.throttle==null)
+				conn.throttle = new Throttle(maxInFlight);
+			this.throttle = conn.throttle;
+		}
+	}
+
+
+    public CompletableFuture<Void> store (final Object o) {
+    	return submit(new Callable<Void>() {
+    		public Void call () {
+    			conn.store(o);
+    			return null;
+    		}
+    	});
+    }
+
+    public CompletableFuture<Void> store (final Object o, final byte access) {
+    	return submit(new Callable<Void>() {
+    		public Void call () {
+    			conn.store(o, access);
+    			return null;
+    		}
+    	});
+    }
+
+    public CompletableFuture<Void> storeAll (final Collection c) {
+    	return submit(new Callable<Void>() {
+    		public Void call () {
+    			conn.storeAll(c);
+    			return null;
+    		}
+    	});
+    }
+
+
+    public CompletableFuture<Object> get (final Class c, final String where) {
+    	return submit(new Callable<Object>() {
+    		public Object call () {
+    			return conn.get(c, where);
+    		}
+    	});
+    }
+
+    public CompletableFuture<Object> get (final Class c, final String where, final String order) {
+    	return submit(new Callable<Object>() {
+    		public Object call () {
+    			return conn.get(c, where, order);
+    		}
+    	});
+    }
+
+    public CompletableFuture<List> getAll (final Class c) {
+    	return getAll(c, null, null);
+    }
+
+    public CompletableFuture<List> getAll (final Class c, final String where) {
+    	return getAll(c, where, null);
+    }
+
+    public CompletableFuture<List> getAll (final Class c, final String where, final String order) {
+    	return submit(new Callable<List>() {
+    		public List call () {
+    			return conn.getAll(c, where, order);
+    		}
+    	});
+    }
+
+
+    public CompletableFuture<Boolean> remove (final Object o) {
+    	return submit(new Callable<Boolean>() {
+    		public Boolean call () {
+    			return Boolean.valueOf(conn.remove(o));
+    		}
+    	});
+    }
+
+    public CompletableFuture<Integer> removeAll (final Class c, final String where) {
+    	return submit(new Callable<Integer>() {
+    		public Integer call () {
+    			return Integer.valueOf(conn.removeAll(c, where));
+    		}
+    	});
+    }
+
+
+    public CompletableFuture<Integer> count (final Class c) {
+    	return count(c, null);
+    }
+
+    public CompletableFuture<Integer> count (final Class c, final String where) {
+    	return submit(new Callable<Integer>() {
+    		public Integer call () {
+    			return Integer.valueOf(conn.count(c, where));
+    		}
+    	});
+    }
+
+
+    /**
+     * Returns the synchronous <code>Connection</code> operations run on.
+     */
+    public Connection connection () {
+    	return conn;
+    }
+
+
+    /**
+     * Runs this task now if an in-flight slot is free, once one is
+     * otherwise.
+     */
+    private <T> CompletableFuture<T> submit (Callable<T> task) {
+    	Operation<T> op = new Operation<T>(task);
+    	if (throttle.start(op))
+    		execute(op);
+    	return op.future;
+    }
+    
+    
+    /**
+     * Runs this operation, or the next queued one if the executor rejects
+     * it.
+     */
+    private void execute (Operation op) {
+    	while (op!=null)
+	    	try {
+	    		executor.execute(op);
+	    		return;
+	    	} catch (RuntimeException e) {
+	    		// Task rejected by executor: its slot goes to the next one
+	    		op.future.completeExceptionally(e);
+	    		op = throttle.done();
+	    	}
+    }
+    
+    
+    /**
+     * An operation and its result.
+     */
+    private final class Operation<T>
+    implements Runnable {
+    	
+    	final Callable<T> task;
+    	final CompletableFuture<T> future;
+    	
+    	Operation (Callable<T> task) {
+    		this.task = task;
+    		this.future = new CompletableFuture<T>();
+    	}
+    	
+    	public void run () {
+    		try {
+    			future.complete(task.call());
+    		} catch (Throwable t) {
+    			future.completeExceptionally(t);
+    		} finally {
+    			execute(throttle.done());
+    		}
+    	}
+    	
+    }
+
+
+    /**
+     * Operations running on a <code>Connection</code>, and those waiting
+     * for an in-flight slot.
+     */
+    static final class Throttle {
+    	
+    	private final int max;
+    	private int running;
+    	private final ArrayDeque<Operation> waiting;
+    	
+    	private Throttle (int max) {
+    		this.max = max;
+    		this.waiting = new ArrayDeque<Operation>();
+    	}
+    	
+    	/**
+    	 * Takes a slot for this task, or queues it.
+    	 * 
+    	 * @return	<code>true</code> if the task may run now
+    	 */
+    	synchronized boolean start (Operation op) {
+    		if (running<max) {
+    			running++;
+    			return true;
+    		}
+    		waiting.add(op);
+    		return false;
+    	}
+    	
+    	/**
+    	 * Hands the slot of a completed task over to the next queued one.
+    	 * 
+    	 * @return	the task to run next, <code>null</code> if none
+    	 */
+    	synchronized Operation done () {
+    		Operation op = waiting.poll();
+    		if (op==null)
+    			running--;
+    		return op;
+    	}
+    	
+    }
+
+
+    /**
+     * Returns the shared executor, creating it on first use: one virtual
+     * thread per task if the JVM supports it, a pool of daemon threads
+     * otherwise.
+     */
+    private static synchronized ExecutorService defaultExecutor () {
+    	if (defaultExecutor!=null)
+    		return defaultExecutor;
+    	try {
+    		defaultExecutor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    	} catch (Exception e) {
+    		// No virtual threads on this JVM
+    		defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+    			public Thread newThread (Runnable r) {
+    				Thread t = new Thread(r, "osql-async");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    	}
+    	return defaultExecutor;
+    }
+
+
+}
@@ -17,6 +17,7 @@
 package org.osql;
 
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -25,14 +26,15 @@ import java.lang.reflect.Modifier;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Stack;
 import java.util.Vector;
 import java.util.Hashtable;
 import java.util.HashMap;
-import java.util.WeakHashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
-import java.lang.ref.SoftReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 
 
@@ -46,11 +48,13 @@ public final class ClassTable {
     
     static final String OSQL_TABLE_NAME = ".Class";
     public static final String INIT_METHOD = "_init_";
+    // Maximum number of WHERE clause templates kept per class
+    static final int TEMPLATES = 256;
     
     
     // Class info
     short id;
-    private final	Class	clazz;
+    final			Class	clazz;
     final			String	className;
 //    final			String	tableName;
     public final			ClassTable	superClassTable;
@@ -63,10 +67,29 @@ public final class ClassTable {
     
     // Storable columns (reference to first column)
     final			FieldColumn	columns;
+    // Row plan: columns of this class, then of the whole hierarchy in
+    // SELECT order with their index in object snapshots
+    final			FieldColumn[]	fields;
+    private final	FieldColumn[]	plan;
+    private final	int[]			planIndex;
+    // Lazy reference columns of the whole hierarchy
+    final			FieldColumn[]	lazy;
+    // Tables to call _init_() of, superclass first
+    private final	ClassTable[]	initChain;
+    // Whether columns reference other objects
+    private final	boolean		hasReferences;
+    // Index of this class columns in object snapshots, and snapshot size
+    private final	int			stateOffset;
+    private final	int			stateSize;
+    // Object ID allocator (auto-indexed top classes only)
+    private final	Sequence	sequence;
     
     // Special methods
     private final	Constructor constructor;
     private final	Method      initializer;
+    // Method handles of the above, null to use reflection
+    private final	MethodHandle creator;
+    private final	MethodHandle init;
 	
 
     // Prepared SQL queries
@@ -79,16 +102,23 @@ public final class ClassTable {
     private String viewGroup;
     private String viewEnd;
 
-    // Cached prepared statements
-    private StatementPool insertPool;
-    private StatementPool updatePool;
+    // Prepared statements queries, pooled by each session
+    private String insertQuery;
+    private String updateQuery;
+    // UPDATE queries of changed columns only, by column mask
+    private final HashMap<Long,String> updateQueries = new HashMap<Long,String>();
     
 //    transient WeakHashMap records;           // Existing object --> ID
 //    transient WeakHashMap ids;    
 	final ObjectCache cache;
+	// Readers/writer lock, shared by the whole class hierarchy
+	final ReentrantReadWriteLock lock;
+	// Translated WHERE clauses with bind variables, by text, least recently
+	// used first. Guarded by itself.
+	final LinkedHashMap<String,Database.Template> templates = new LinkedHashMap<String,Database.Template>(16, 0.75f, true);
     
     
-    private ClassTable(Class c, ClassTable sc, ClassTable tc, java.sql.Connection conn)//, TableNameMapper mapper)
+    private ClassTable(Class c, ClassTable sc, ClassTable tc)//, TableNameMapper mapper)
     throws OSQLException {
         if (c==Object.class)
         	throw new OSQLException("Cannot save java.lang.Object objects.");
@@ -115,11 +145,14 @@ public final class ClassTable {
 //        this.records = new WeakHashMap();
 //        this.ids = new WeakHashMap();
         
-        // One cache per object filiation
-        if (tc==this)
+        // One cache and one lock per object filiation
+        if (tc==this) {
         	this.cache = new ObjectCache();
-        else
+        	this.lock = new ReentrantReadWriteLock();
+        } else {
         	this.cache = tc.cache;
+        	this.lock = tc.lock;
+        }
         
         // Find the empty constructor (used for object restoration)
         try {
@@ -130,6 +163,7 @@ public final class ClassTable {
         } catch (NoSuchMethodException e) {
             throw new OSQLException("Empty constructor missing.\nClass "+className+" thus cannot be restored.", e);
         }
+        creator = Modifier.isAbstract(clazz.getModifiers()) ? null : Accessor.constructor(constructor);
         
         // Find the _init_() method (used once object has been restored)
         Method init = null;
@@ -140,6 +174,7 @@ public final class ClassTable {
 //            init = null;
         }
         initializer = init;
+        this.init = init==null ? null : Accessor.initializer(init);
 //        if (initializer!=null)
 //        		initializer.setAccessible(true);
         
@@ -178,11 +213,8 @@ public final class ClassTable {
 	        		fieldIdx++;
 	        		pkIdx = fieldIdx;
 //	        		System.out.println("pkIdx="+pkIdx);
-		            // Top-level class ?
-			        if (superClassTable==null)
-			        	iq.append("NULL");
-			        else
-			        	iq.append("?");
+	        		// Object ID is allocated by our sequence
+		        	iq.append("?");
 	        	}
 		        // Has children ?
 		        if (!isFinal) {
@@ -232,22 +264,69 @@ public final class ClassTable {
         iq.append(")");
         
         // Store INSERT query string
-        insertPool = new StatementPool(conn, iq.toString());
+        insertQuery = iq.toString();
 //        this.insert = iq.toString();
 //System.out.println("Insert query:  "+insert);       // Log
 
         // Do we have columns to work on?
         if (fv.size()==0) {
-            this.updatePool = null;
+            this.updateQuery = null;
             this.columns = null;
+            this.hasReferences = false;
         } else {
 	        // Store UPDATE query string
 	        uq.append(" WHERE \""+table.primaryKey+"\"=?");
-	        this.updatePool = new StatementPool(conn, uq.toString());
+	        this.updateQuery = uq.toString();
 	//        this.update = uq.toString();
 	//System.out.println("Update query:  "+update);       // Log
 	        // Store relevant columns
 	        this.columns = FieldColumn.create(fv);
+	        boolean refs = false;
+	        for (FieldColumn col=columns; col!=null; col=col.next())
+	        	if (col.getClass()==FieldColumn._Object.class)
+	        		refs = true;
+	        this.hasReferences = refs;
+        }
+        this.sequence = sc==null && table.autoIndex ? new Sequence(this) : null;
+        this.stateOffset = sc==null ? 0 : sc.stateSize;
+        this.stateSize = stateOffset+fv.size();
+        
+        // Compile the row plan
+        this.fields = new FieldColumn[fv.size()];
+        int k = 0;
+        for (FieldColumn col=columns; col!=null; col=col.next()) {
+        	col.index = stateOffset+k;
+        	if (col instanceof FieldColumn._Object && !col.field.getType().isArray())
+        		((FieldColumn._Object)col).lazy = table.isLazy(col.field.getName());
+        	fields[k++] = col;
+        }
+        ClassTable[] supers = sc==null ? new ClassTable[0] : sc.initChain;
+        if (sc==null || sc.clazz==Object.class) {
+        	this.plan = fields;
+        	this.planIndex = new int[fields.length];
+        	for (k=0; k<fields.length; k++)
+        		planIndex[k] = stateOffset+k;
+        } else {
+        	this.plan = new FieldColumn[fields.length+sc.plan.length];
+        	this.planIndex = new int[plan.length];
+        	for (k=0; k<fields.length; k++) {
+        		plan[k] = fields[k];
+        		planIndex[k] = stateOffset+k;
+        	}
+        	System.arraycopy(sc.plan, 0, plan, fields.length, sc.plan.length);
+        	System.arraycopy(sc.planIndex, 0, planIndex, fields.length, sc.plan.length);
+        }
+        Vector lv = new Vector();
+        for (k=0; k<plan.length; k++)
+        	if (plan[k] instanceof FieldColumn._Object && ((FieldColumn._Object)plan[k]).lazy)
+        		lv.add(plan[k]);
+        this.lazy = (FieldColumn[])lv.toArray(new FieldColumn[lv.size()]);
+        if (initializer==null)
+        	this.initChain = supers;
+        else {
+        	this.initChain = new ClassTable[supers.length+1];
+        	System.arraycopy(supers, 0, initChain, 0, supers.length);
+        	initChain[supers.length] = this;
         }
         createView();
     }
@@ -255,13 +334,13 @@ public final class ClassTable {
     
     ClassTable (Connection conn, Class c, ClassTable sc, ClassTable tc)
     throws OSQLException {
-        this(c, sc, tc, conn.db.connection);//, conn.db.tableNameMapper);
+        this(c, sc, tc);//, conn.db.tableNameMapper);
         StringBuffer q = new StringBuffer("SELECT TOP 1 \"id\" FROM \"");
         q.append(OSQL_TABLE_NAME);
         q.append("\" ORDER BY \"id\" DESC");
         ResultSet rs;
         try {
-            rs = conn.db.statement.executeQuery(q.toString());
+            rs = conn.db.system.statement.executeQuery(q.toString());
         } catch (SQLException e) {
             throw new OSQLException("System table \""+OSQL_TABLE_NAME+"\" is probably missing.\nCould not execute SQL query: "+q.toString(), e);
         }
@@ -296,7 +375,7 @@ public final class ClassTable {
         q.append(")");
 //conn.db.out.println(q.toString());
         try {
-            conn.db.statement.executeUpdate(q.toString());
+            conn.db.system.statement.executeUpdate(q.toString());
         } catch (SQLException e) {
             throw new OSQLException("Could not INSERT new table record for class \""+c.getName()+"\".\n"+q.toString(),e);
         }
@@ -309,7 +388,7 @@ public final class ClassTable {
     
     ClassTable (Connection conn, short id, Class c, ClassTable sc, ClassTable tc)
     throws OSQLException {
-        this(c, sc, tc, conn.db.connection);//, conn.db.tableNameMapper);
+        this(c, sc, tc);//, conn.db.tableNameMapper);
         this.id = id;
 /*        insertPool = new StatementPool(conn.db.connection, insert);
         if (update!=null)
@@ -329,13 +408,25 @@ public final class ClassTable {
     ObjectRecord insertRecord (Connection conn, Object o, byte access, ObjectRecord p, ClassTable top)
     throws OSQLException {
         // Get a SQL INSERT statement for this class
-        PreparedStatement row = insertPool.get();
+        Database.RequestCache requestCache = conn.db.requestCache();
+        Session session = requestCache.session;
+        Session.StatementPool insertPool = session.pool(insertQuery);
+        // Subclass rows can be batched: their id comes from the superclass.
+        // So can top rows with allocated ids, unless they reference other
+        // rows, which might still be waiting in their own batch.
+        boolean batch = requestCache.batching && (superClassTable!=null || (sequence!=null && !hasReferences));
+        PreparedStatement row = batch ? requestCache.batch(this, insertPool) : insertPool.get();
 
         try {
             // Top of the object hierarchy?
             if (superClassTable==null) {
                 // Create new object record
             	int i = 1;
+            	Integer id = null;
+            	if (sequence!=null) {
+            		id = Integer.valueOf(sequence.next(conn.db));
+            		row.setInt(i++, id.intValue());       // Object ID
+            	}
             	if (!isFinal)
             		row.setInt(i++, top.id);              // Class name
                 // Parent object, or owner object (null if none)
@@ -349,22 +440,21 @@ public final class ClassTable {
 	                row.setShort(i++, conn.user.group);               // Group
 	                row.setByte(i++, access);     // Access rights
                 }
-                ObjectRecord r = new ObjectRecord(this, conn.user.id, conn.user.group, null, o, access);
-                conn.db.requestCache.put(o, r);
+                ObjectRecord r = new ObjectRecord(this, conn.user.id, conn.user.group, id, o, access);
+                conn.db.requestCache().put(o, r);
                 // Loop through columns
-                if (columns!=null)
-                	columns.store(conn, r, access, row, i);
-                row.executeUpdate();
+                store(conn, r, access, row, i, r.stage(top.stateSize));
+                if (batch)
+                	requestCache.addBatch(row);
+                else {
+                	// Rows referenced by this one must be there already
+                	requestCache.flushTop();
+                	row.executeUpdate();
+                }
                 /*
                  * Retrieve object ID
                  */ 
-                if (table.autoIndex) {
-                	// Auto indexing needs a db request to retrieve id
-	                ResultSet rs = conn.db.statement.executeQuery("CALL IDENTITY();");
-	                rs.next();
-	                r.id = table.primaryKey!=null ? new Integer(rs.getInt(1)) : null;
-	                rs.close();
-                } else if (table.primaryKey!=null)
+                if (sequence==null && table.primaryKey!=null)
                 	r.id = getPrimaryKey(o);
 /*                	try {
 	                	Field pk = clazz.getDeclaredField(table.primaryKey);
@@ -384,8 +474,9 @@ public final class ClassTable {
                     } catch (SQLException e) {
                         throw new OSQLException("Could not INSERT reference for parent/child "+p.id+"/"+r.id, e);
                     }*/
-                insertPool.release(row);
-                conn.db.requestCache.put(o, r);
+                if (!batch)
+                	insertPool.release(row);
+                conn.db.requestCache().put(o, r);
 //                System.out.println("oid="+r.id+"  pkIdx="+pkIdx);
                 return r;
             }
@@ -400,8 +491,11 @@ public final class ClassTable {
             }*/
                 
             // Loop through columns, if any
-            if (columns!=null)
-            	columns.store(conn, r, access, row, 2);
+            store(conn, r, access, row, 2, r.stage(top.stateSize));
+            if (batch) {
+            	requestCache.addBatch(row);
+            	return r;
+            }
             row.executeUpdate();
 
             // Close or free INSERT statement
@@ -413,6 +507,20 @@ public final class ClassTable {
     }
 
     
+    /**
+     * Binds the columns of this class from position <code>pos</code>,
+     * keeping their values in <code>state</code>.
+     */
+    private void store (Connection conn, ObjectRecord r, byte access, PreparedStatement row, int pos, ObjectRecord.State state)
+    throws OSQLException, SQLException {
+    	FieldColumn[] fields = this.fields;
+    	for (int k=0; k<fields.length; k++) {
+    		fields[k].load(conn, r, access, state, stateOffset+k);
+    		fields[k].bind(row, pos+k, state, stateOffset+k);
+    	}
+    }
+    
+    
     /**
      * 
      * @param o
@@ -428,7 +536,33 @@ public final class ClassTable {
         if (!r.isWritable(conn.user))
             throw new OSQLAccessViolation("Object is not writable.");
 //            return r;
-        return update(conn, r, access, p);
+        return update(conn, r, access, p, r.stage(stateSize));
+    }
+
+    /**
+     * Returns whether the fields of the object of this record, at all class
+     * levels, still hold its committed values, its references included, so
+     * that storing it would write nothing.
+     */
+    boolean isClean (Connection conn, ObjectRecord r)
+    throws OSQLException {
+    	ObjectRecord.State state = r.committed();
+    	if (state==null || state.values.length!=stateSize || r.object()==null)
+    		return false;
+    	ObjectRecord.State value = new ObjectRecord.State(1);
+    	try {
+    		for (ClassTable t=this; t!=null; t=t.superClassTable)
+    			for (int k=0; k<t.fields.length; k++) {
+    				t.fields[k].peek(conn, r, value, 0);
+    				if (!state.same(t.stateOffset+k, value, 0))
+    					return false;
+    			}
+    	} catch (SQLException e) {
+    		return false;
+    	} catch (IllegalAccessException e) {
+    		return false;
+    	}
+    	return true;
     }
 
     /**
@@ -440,7 +574,7 @@ public final class ClassTable {
      * @return
      * @throws SQLException
      */
-    private ObjectRecord update (Connection conn, ObjectRecord r, byte access, ObjectRecord p)
+    private ObjectRecord update (Connection conn, ObjectRecord r, byte access, ObjectRecord p, ObjectRecord.State state)
     throws OSQLException {
 /*    	if (!conn.db.processedObjects.containsKey(r.object.get())) {
     		conn.db.processedObjects.put(r.object.get(), r);
@@ -449,12 +583,37 @@ public final class ClassTable {
 //    	conn.db.requestCache.put(r.object(), r);
         if (superClassTable!=null) {
         	// Update superclass record
-            superClassTable.update(conn, r, access, p);
+            superClassTable.update(conn, r, access, p, state);
         }
         
-        if (updatePool==null)
+        if (updateQuery==null)
+        	return r;
+        // Compare column values with what the database holds
+        FieldColumn[] fields = this.fields;
+        int n = fields.length;
+        ObjectRecord.State values = new ObjectRecord.State(n);
+        long changed = 0;
+        boolean dirty = false;
+        int k;
+        try {
+	        for (k=0; k<n; k++) {
+	        	fields[k].load(conn, r, access, values, k);
+	        	if (state.same(stateOffset+k, values, k))
+	        		continue;
+	        	dirty = true;
+	        	if (k<64)
+	        		changed |= 1L<<k;
+	        	else
+	        		changed = -1L;
+	        }
+        } catch (SQLException e) {
+            throw new OSQLException("Could not update record of class "+className, e);
+        }
+        // Nothing to write?
+        if (!dirty)
         	return r;
-        // Get a SQL UPDATE statement for this class
+        // Get a SQL UPDATE statement for changed columns
+        Session.StatementPool updatePool = conn.db.requestCache().session.pool(updateQuery(changed, n));
         PreparedStatement row = updatePool.get();
         try {
 /*            // c is java.lang.Record ?
@@ -481,9 +640,17 @@ public final class ClassTable {
                 r = a;
             }*/
                 
-            // Loop through columns
-            row.setInt(columns.store(conn, r, access, row, 1), r.id.intValue());
+            // Loop through changed columns
+            int pos = 1;
+            for (k=0; k<n; k++) {
+            	if (changed!=-1L && (changed&(1L<<k))==0)
+            		continue;
+            	fields[k].bind(row, pos++, values, k);
+            	state.set(stateOffset+k, values, k);
+            }
+            row.setInt(pos, r.id.intValue());
 
+            conn.db.requestCache().flushTop();
             row.executeUpdate();
             updatePool.release(row);
             return r;
@@ -493,7 +660,56 @@ public final class ClassTable {
     }
 	
     
+    /**
+     * Returns the UPDATE query of these columns of this class.
+     * 
+     * @param changed	mask of changed columns, -1 for all of them
+     * @param n			number of columns of this class
+     */
+    private String updateQuery (long changed, int n) {
+    	if (changed==-1L || (n<64 && changed==(1L<<n)-1))
+    		return updateQuery;
+    	synchronized (updateQueries) {
+    		Long key = Long.valueOf(changed);
+    		String q = updateQueries.get(key);
+    		if (q!=null)
+    			return q;
+	        StringBuffer uq = new StringBuffer("UPDATE \"");
+	        uq.append(table.name);
+	        uq.append("\" SET ");
+	        boolean first = true;
+	        for (int k=0; k<fields.length; k++) {
+	        	if ((changed&(1L<<k))==0)
+	        		continue;
+	        	if (!first)
+	        		uq.append(", ");
+	        	first = false;
+	            uq.append("\"");
+	            uq.append(fields[k].field.getName());
+	            uq.append("\"=?");
+	        }
+	        uq.append(" WHERE \""+table.primaryKey+"\"=?");
+	        q = uq.toString();
+	        updateQueries.put(key, q);
+	        return q;
+    	}
+    }
+    
+    
     Object restoreObject (Connection conn, ResultSet rs)
+    throws OSQLException {
+    	return restoreObject(conn, rs, false);
+    }
+    
+    
+    /**
+     * Restores the object of the current row.
+     * 
+     * @param subclassRows	whether to return a {@link SubclassRow} for rows
+     * 						of subclass objects that are not in cache,
+     * 						rather than selecting them right away
+     */
+    Object restoreObject (Connection conn, ResultSet rs, boolean subclassRows)
     throws OSQLException {
         Integer oid = null;
         String name = null;
@@ -523,13 +739,19 @@ public final class ClassTable {
         }
 
         // Check if we have this object in cache already
-        ObjectRecord r;
+        ObjectRecord r = null;
         if (table.autoIndex || table.primaryKey!=null) { 
+        	// Restored by this request already?
+        	Object ro = conn.db.requestCache().restored(topClassTable, oid);
+        	if (ro!=null)
+        		return ro;
 	        // Is this object from this class / a subclass of this class ?
 	    	if (isFinal || className.equals(name))
 	        	r = cache.getById(oid);
 	    	else {
 	    		r = conn.db.getClassTable(name).cache.getById(oid);
+	    		if (r==null && subclassRows)
+	    			return new SubclassRow(name, oid);
 	    		if (r==null)
 	        		return conn.select(name, oid.intValue());
 	    	}
@@ -537,8 +759,11 @@ public final class ClassTable {
 	        if (r!=null) {
 	//conn.db.out.println("### Select() - GET FROM CACHE  #"+oid);
 	            Object o = r.object();
-	            if (o!=null) {
-		            conn.db.requestCache.put(o, r);
+	            // Stale: refreshed from the row of its own class
+	            if (o!=null && r.isStale() && !(isFinal || className.equals(name)))
+	            	return conn.select(name, oid.intValue());
+	            if (o!=null && !r.isStale()) {
+		            conn.db.requestCache().put(o, r);
 		            if (conn.db.logLevel<Database.LOG_VERBOSE)
 		                return o;
 		            // Log objet restore
@@ -559,32 +784,33 @@ public final class ClassTable {
 	        }
         }
         
-        // Build object from scratch
-        Object o;
-        try {
-            // Create instance
-            o = constructor.newInstance(null);
-        } catch (InstantiationException e) {
-            throw new OSQLException("Could not instantiate class.\nClass: "+Modifier.toString(clazz.getModifiers())+" "+className+"\nTip: Is it an abstract class?", e);
-        } catch (InvocationTargetException e) {
-            throw new OSQLException("Constructor threw an exception.\nClass: "+className, e);
-        } catch (IllegalAccessException e) {
-            // Should never happen! Every elements are set to be accessible.
-            throw new OSQLException("/!\\ ERROR:  Could not access object constructor for "+className+" !", e);
+        Object o = r==null ? null : r.object();
+        if (o!=null) {
+        	// Stale object: refresh it in place
+        	r.uid = uid;
+        	r.gid = gid;
+        	r.access = access;
+        } else {
+        	// Build object from scratch
+        	o = newInstance();
+        	r = new ObjectRecord(this, uid, gid, oid, o, access);
         }
-        r = new ObjectRecord(this, uid, gid, oid, o, access);
 //        conn.db.requestCache.put(oid, r);
-        conn.db.requestCache.put(o, r);
+        conn.db.requestCache().put(o, r);
+        if (oid!=null)
+        	conn.db.requestCache().restored(topClassTable, oid, o);
         // Fill object with stored values
-        restoreFields(conn, o, rs, i);
+        restoreFields(conn, r, o, rs, i);
 
 /*        if (clazz==Array.class) {
             o = ((Array)o).dump(db);
             db.processedIds.put(oid, new WeakReference(o));
         } else*/
-        initObject(conn, o);
+        // Wait for references to be wired, if they are fetched afterwards
+        if (initChain.length>0 && !conn.db.requestCache().deferInit(o, this))
+        	initObject(conn, o);
         // Save object in cache 
-        conn.db.requestCache.put(o, r);
+        conn.db.requestCache().put(o, r);
         if (conn.db.logLevel<Database.LOG_VERBOSE)
             return o;
         // Log objet restore
@@ -602,27 +828,144 @@ public final class ClassTable {
         conn.db.out.println(log.toString());
         return o;
     }
-
     
-    private void restoreFields (Connection conn, Object o, ResultSet row, int col)
+    
+    /**
+     * Restores an object the current row references, from the columns a
+     * fetch plan join selected from column <code>col</code>: ID, class ID
+     * unless this class is final, then the columns of the row plan.
+     * 
+     * @return	the object, or <code>null</code> if there is none or if it is
+     * 			of a subclass (whose columns are missing from the row)
+     */
+    Object restoreJoined (Connection conn, ResultSet rs, int col)
+    throws OSQLException {
+    	Integer oid;
+    	try {
+    		int id = rs.getInt(col++);
+    		if (rs.wasNull())
+    			return null;
+    		oid = Integer.valueOf(id);
+    		if (!isFinal && rs.getShort(col++)!=this.id)
+    			return null;
+    	} catch (SQLException e) {
+            throw new OSQLException("SQL exception during instance building.:\nClass: "+className, e);
+    	}
+    	Database.RequestCache requestCache = conn.db.requestCache();
+    	ObjectRecord r = cache.getById(oid);
+    	Object o = r==null ? null : r.object();
+    	if (o!=null && !r.isStale()) {
+    		requestCache.put(o, r);
+    		requestCache.restored(topClassTable, oid, o);
+    		return o;
+    	}
+    	if (o==null) {
+    		o = requestCache.restored(topClassTable, oid);
+    		if (o!=null)
+    			return o;
+    		o = newInstance();
+    		r = new ObjectRecord(this, (short)0, (short)1, oid, o, (byte)0xff);
+    	}
+    	// New, or stale and refreshed in place
+    	requestCache.put(o, r);
+    	requestCache.restored(topClassTable, oid, o);
+    	restoreFields(conn, r, o, rs, col);
+        if (initChain.length>0 && !requestCache.deferInit(o, this))
+        	initObject(conn, o);
+    	return o;
+    }
+    
+    
+    /**
+     * Returns a new instance of this class, built by its empty constructor.
+     */
+    private Object newInstance ()
     throws OSQLException {
         try {
-            if (columns!=null)
-                col = columns.restore(conn, o, row, col);
-            if (superClassTable==null || superClassTable.clazz==Object.class)
-                return;
-            superClassTable.restoreFields(conn, o, row, col);
+            // Create instance
+            if (creator!=null)
+            	return (Object)creator.invokeExact();
+            return constructor.newInstance(null);
+        } catch (InstantiationException e) {
+            throw new OSQLException("Could not instantiate class.\nClass: "+Modifier.toString(clazz.getModifiers())+" "+className+"\nTip: Is it an abstract class?", e);
+        } catch (InvocationTargetException e) {
+            throw new OSQLException("Constructor threw an exception.\nClass: "+className, e);
+        } catch (IllegalAccessException e) {
+            // Should never happen! Every elements are set to be accessible.
+            throw new OSQLException("/!\\ ERROR:  Could not access object constructor for "+className+" !", e);
+        } catch (OSQLException e) {
+        	throw e;
+        } catch (Throwable t) {
+            throw new OSQLException("Constructor threw an exception.\nClass: "+className, t);
+        }
+    }
+    
+    
+    /**
+     * Fills the object of this record with the values of the row, read from
+     * column <code>col</code>, and keeps them as its snapshot.
+     */
+    private void restoreFields (Connection conn, ObjectRecord r, Object o, ResultSet rs, int col)
+    throws OSQLException {
+        ObjectRecord.State state = new ObjectRecord.State(stateSize);
+        restoreFields(conn, o, rs, col, state);
+        r.restored(state);
+        try {
+	        for (int k=0; k<lazy.length; k++)
+	        	if (state.values[lazy[k].index]!=null && lazy[k].accessor.get(o)==null)
+	        		r.defer(lazy[k].index, (Integer)state.values[lazy[k].index], stateSize);
+        } catch (IllegalAccessException e) {
+            // Should never be thrown, cause we jump over VM access restrictions
+            throw new OSQLException("/!\\ ERROR:  Object field is not accessible !!!"+
+                    "\nCould not GET lazy fields from object "+o, e);
+        }
+    }
+    
+    
+    /**
+     * Fills object with the values of the whole hierarchy, read from
+     * column <code>col</code> of the row, following the row plan.
+     */
+    private void restoreFields (Connection conn, Object o, ResultSet row, int col, ObjectRecord.State state)
+    throws OSQLException {
+    	FieldColumn[] plan = this.plan;
+    	int[] index = planIndex;
+    	int k = 0;
+        try {
+        	for (; k<plan.length; k++)
+        		plan[k].get(conn, o, row, col+k, state, index[k]);
         } catch (SQLException e) {
             throw new OSQLException("Could not set object data.\nClass: "+className, e);
+        } catch (IllegalAccessException e) {
+            // Should never be thrown, cause we jump over VM access restrictions
+            throw new OSQLException("/!\\ ERROR:  Object field is not accessible !!!"+
+                    "\nCould not SET field '"+plan[k].field.getName()+
+                    "' from object "+o, e);
         }
     }
     
 
-    private void initObject(Connection conn, Object o)
+    void initObject(Connection conn, Object o)
     throws OSQLException {
-        if (superClassTable!=null)
-            superClassTable.initObject(conn, o);
-        if (initializer!=null)
+    	for (int k=0; k<initChain.length; k++)
+    		initChain[k].initialize(conn, o);
+    }
+    
+    
+    /**
+     * Calls the _init_() method of this class.
+     */
+    private void initialize(Connection conn, Object o)
+    throws OSQLException {
+        if (init!=null)
+            try {
+                init.invokeExact(o, conn);
+            } catch (OSQLException e) {
+            	throw e;
+            } catch (Throwable t) {
+                throw new OSQLException("Initializer threw an exception.\nClass: "+className, t);
+            }
+        else if (initializer!=null)
             try {
                 initializer.invoke(o, conn);
             } catch (IllegalAccessException e) {
@@ -735,7 +1078,7 @@ public final class ClassTable {
         // Execute SQL query
 //System.out.println("Create table:\n"+q.toString());
         try {
-            conn.db.statement.executeUpdate(q.toString());
+            conn.db.system.statement.executeUpdate(q.toString());
 //            conn.db.connection.commit();
         } catch (SQLException e) {
             throw new OSQLException("Could not create database TABLE '"+table.name+"' for class "+className+"\nQuery:  "+q, e);
@@ -747,7 +1090,7 @@ public final class ClassTable {
         	st.append("\" SOURCE \"");
         	st.append(this.table.isTextTable);
         	st.append("\"");
-            conn.db.statement.executeUpdate(st.toString());
+            conn.db.system.statement.executeUpdate(st.toString());
 //            conn.db.statement.executeUpdate("CHECKPOINT");
 //            conn.db.connection.commit();
         } catch (SQLException e) {
@@ -923,6 +1266,81 @@ public final class ClassTable {
     }
     
     
+    /**
+     * Appends the condition restricting rows of this class to those
+     * readable by this user, if it has access rights.
+     * 
+     * @return	<code>false</code> if it has none
+     */
+    boolean appendAccess (User user, StringBuffer q) {
+    	if (!table.hasAccessRights)
+    		return false;
+    	// Same as in the view, without the leading AND
+    	q.append(viewUser.substring(viewUser.indexOf("AND ")+4));
+    	q.append(user.id);
+    	q.append(viewGroup);
+    	q.append(user.group);
+    	q.append(") )");
+    	return true;
+    }
+    
+    
+    /**
+     * Returns the number of columns of the view of this class.
+     */
+    int viewWidth () {
+    	int n = plan.length;
+    	if (table.primaryKey!=null) {
+    		if (table.autoIndex)
+    			n++;
+    		if (!isFinal)
+    			n++;
+    		if (table.hasAccessRights)
+    			n += 3;
+    	}
+    	return n;
+    }
+    
+    
+    /**
+     * Returns whether objects of this class are subject to access rights.
+     */
+    boolean hasAccessRights () {
+    	for (ClassTable t=this; t!=null; t=t.superClassTable)
+    		if (t.table.hasAccessRights)
+    			return true;
+    	return false;
+    }
+    
+    
+    /**
+     * Returns the class of this hierarchy whose table holds this field,
+     * <code>null</code> if none does.
+     */
+    public ClassTable declaring (String field) {
+    	for (ClassTable t=this; t!=null && t.clazz!=Object.class; t=t.superClassTable)
+    		for (int k=0; k<t.fields.length; k++)
+    			if (t.fields[k].field.getName().equals(field))
+    				return t;
+    	return null;
+    }
+    
+    
+    /**
+     * Returns the column of this field in this class hierarchy,
+     * <code>null</code> if none.
+     */
+    FieldColumn column (String field) {
+    	ClassTable t = declaring(field);
+    	if (t==null)
+    		return null;
+    	for (int k=0; k<t.fields.length; k++)
+    		if (t.fields[k].field.getName().equals(field))
+    			return t.fields[k];
+    	return null;
+    }
+    
+    
     public ClassTable getFieldTable(Database db, String field)
     throws OSQLException {
     	if (columns==null)
@@ -979,81 +1397,21 @@ public final class ClassTable {
     
     
     /**
-     * A pool of SQL prepared statements designed to speed up request processing
-     * time under heavy load without hurting memory footprint.
+     * A row of a subclass object, whose subclass columns are missing from
+     * the row and must be selected from the subclass view.
      */
-    static private class StatementPool {
-
-
-    	/**
-    	 * SQL <code>Connection</code> to the database. 
-    	 */
-    	private final java.sql.Connection conn;
-    	/**
-    	 * <code>PreparedStatement</code> definition.
-    	 */
-    	private final String statement;
-    	/**
-    	 * Stack caching available prepared statements.
-    	 * Each <code>PreparedStatement</code> is wrapped into a
-    	 * <code>SoftReference</code> to allow garbage-collection of unused
-    	 * statements.
-    	 */
-    	private final Stack<SoftReference<PreparedStatement>> cache;
+    static final class SubclassRow {
     	
+    	final String name;
+    	final Integer oid;
     	
-    	StatementPool(java.sql.Connection conn, String statement) {
-    		this.conn = conn;
-    		this.statement = statement;
-    		this.cache = new Stack<SoftReference<PreparedStatement>>();
-    	}
-
-    	
-    	PreparedStatement get()
-    	throws OSQLException {
-    		SoftReference<PreparedStatement> ref;
-    		PreparedStatement ps;
-    		// Attempt to find a free PS
-    		while (!cache.isEmpty()) {
-    			ref = cache.pop();
-    			ps = ref.get();
-    			if (ps!=null)
-    				return ps;
-    		}
-    		// No PS available, create a new one
-    		try {
-    			return conn.prepareStatement(statement);
-    		} catch (SQLException e) {
-                throw new OSQLException("Could not create SQL statement:\n"+statement, e);
-    		}
-    	}
-    	
-    	
-    	void release(PreparedStatement ps) {
-    		cache.push(new SoftReference<PreparedStatement>(ps));
-    	}
-    	
-
-        protected void finalize ()
-    	throws Throwable {
-        	SoftReference<PreparedStatement> ref;
-        	PreparedStatement ps;
-        	while (!cache.isEmpty()) {
-    			ref = cache.pop();
-//    			if (ref==null)
-//    				continue;
-    			ps = ref.get();
-    			if (ps==null)
-    				continue;
-    			// Attempt to close SQL statement
-		    	try {
-	                ps.close();
-		    	} catch (SQLException e) {}
-        	}
+    	SubclassRow (String name, Integer oid) {
+    		this.name = name;
+    		this.oid = oid;
     	}
     	
     }
-
+    
     
     
     public static final class TableProperties {
@@ -1065,14 +1423,28 @@ public final class ClassTable {
         public static final String ACCESS_RIGHTS = "accessRights";
         public static final String TEXT_TABLE = "textTable";
         public static final String CACHED_TABLE = "cached";
+        public static final String WRITE_BEHIND = "writeBehind";
+        public static final String LAZY = "lazy";
+        public static final String CACHE = "cache";
+        public static final String CACHE_SIZE = "cacheSize";
+        public static final String CACHE_BYTES = "cacheBytes";
+        public static final String CACHE_TTL = "cacheTTL";
         
         
         public final String  name;
         public final String  primaryKey;
         final boolean autoIndex;
-        private final boolean hasAccessRights;
+        final boolean hasAccessRights;
         private final boolean isCached;
         private final String  isTextTable;
+        final boolean writeBehind;
+        // "true" or a comma separated list of reference fields
+        private final String lazy;
+        // Second-level cache policy (null if none) and bounds
+        final String cache;
+        final int cacheSize;
+        final long cacheBytes;
+        final long cacheTTL;
     	
         
         private TableProperties(Class c)//, TableNameMapper mapper)
@@ -1086,6 +1458,12 @@ public final class ClassTable {
             boolean hasAccessRights = false;
             boolean isCached = false;
             String  isTextTable = null;
+            boolean writeBehind = false;
+            String  lazy = null;
+            String  cache = null;
+            long    cacheSize = 0;
+            long    cacheBytes = 0;
+            long    cacheTTL = 0;
     		/*
     		 * Retrieve table properties, if any
     		 * (silent exit on exception if none) 
@@ -1133,6 +1511,21 @@ public final class ClassTable {
     		    	} else if (key.equals(CACHED_TABLE)) {
     		    		if (value.equals("true"))
     		    			isCached = true;
+    		    	} else if (key.equals(WRITE_BEHIND)) {
+    		    		if (value.equals("true"))
+    		    			writeBehind = true;
+    		    	} else if (key.equals(LAZY)) {
+    		    		if (!value.equals("false"))
+    		    			lazy = value;
+    		    	} else if (key.equals(CACHE)) {
+    		    		if (!value.equals("none"))
+    		    			cache = value;
+    		    	} else if (key.equals(CACHE_SIZE)) {
+    		    		cacheSize = parseLong(c, i, value);
+    		    	} else if (key.equals(CACHE_BYTES)) {
+    		    		cacheBytes = parseLong(c, i, value);
+    		    	} else if (key.equals(CACHE_TTL)) {
+    		    		cacheTTL = parseLong(c, i, value);
     		    	}
     		    }
     	    } catch (NoSuchFieldException e) {
@@ -1167,6 +1560,42 @@ public final class ClassTable {
             this.hasAccessRights = hasAccessRights;
             this.isCached = isCached;
             this.isTextTable = isTextTable;
+            this.writeBehind = writeBehind;
+            this.lazy = lazy;
+            if (cacheSize>Integer.MAX_VALUE)
+            	throw new OSQLException("Cache size too large in class "+c.getName()+": "+cacheSize);
+            this.cache = cache;
+            this.cacheSize = (int)cacheSize;
+            this.cacheBytes = cacheBytes;
+            this.cacheTTL = cacheTTL;
+        }
+        
+        
+        private static long parseLong(Class c, int i, String value)
+        throws OSQLException {
+        	try {
+        		return Long.parseLong(value);
+        	} catch (NumberFormatException e) {
+        		throw new OSQLException("Syntax error in class "+c.getName()
+    	    		+", table property n"+i+", not a number: '"+value+"'");
+        	}
+        }
+        
+        
+        /**
+         * Returns whether objects referenced by this field are only fetched
+         * on demand.
+         */
+        boolean isLazy (String field) {
+        	if (lazy==null)
+        		return false;
+        	if (lazy.equals("true"))
+        		return true;
+        	StringTokenizer st = new StringTokenizer(lazy, ", ");
+        	while (st.hasMoreTokens())
+        		if (st.nextToken().equals(field))
+        			return true;
+        	return false;
         }
 
         
@@ -1184,37 +1613,60 @@ public final class ClassTable {
      * memory will never run out because of cached dead objects.
      * <p>
      * The goal of this cache is to speed up user requests as cached objects
-     * will not have to be reconstructed from database data. 
+     * will not have to be reconstructed from database data.
+     * <p>
+     * Concurrent readers of a class hierarchy share its cache: lookups share
+     * a read lock, updates (and the cleanup of collected objects) take the
+     * write lock.
      */
-    final class ObjectCache {
+    final class ObjectCache
+    implements SecondLevelCache.Listener {
     	
     	
         /**
-         * A map with weak identity-keys mapping objects with their records.
-         * Each <code>ObjectRecord</code> is wrapped into a
-         * <code>WeakReference</code> to prevent circular strong referencement.
+         * Maps objects, by identity, with their records. Objects are
+         * weakly referenced, records strongly: a record lives as long as its
+         * object.
          */
-        private final WeakHashMap<Object,ObjectRecord> objects;
+        private final WeakIdentityMap objects;
         
         /**
-         * A map with value-keys mapping object IDs with their records.
-         * Each <code>ObjectRecord</code> is wrapped into a
-         * <code>WeakReference</code> to allow garbage collection of cached
-         * objects.
+         * Maps object IDs with their (weakly referenced) records.
          */
-        private final WeakHashMap<Integer,WeakReference<ObjectRecord>> ids;    
+        private final IdIndex ids;
+        
+        private final ReentrantReadWriteLock.ReadLock readLock;
+        private final ReentrantReadWriteLock.WriteLock writeLock;
+        
+        /**
+         * Strong references to objects kept in cache even if unused, if the
+         * table properties of the top class declare it (<code>null</code>
+         * otherwise).
+         */
+        final SecondLevelCache second;
     	
  
         private ObjectCache () {
-            this.objects = new WeakHashMap<Object,ObjectRecord>();
-            this.ids = new WeakHashMap<Integer,WeakReference<ObjectRecord>>();
+            this.objects = new WeakIdentityMap();
+            this.ids = new IdIndex();
+            ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+            this.readLock = lock.readLock();
+            this.writeLock = lock.writeLock();
+            this.second = table.cache==null ? null
+            	: new SecondLevelCache(table.cache, table.cacheSize, table.cacheBytes, table.cacheTTL, this);
         }
 
         
         // only called by Database
         ObjectRecord get(Object o)
         throws OSQLException {
-        	ObjectRecord r = objects.get(o);
+        	ObjectRecord r;
+        	readLock.lock();
+        	try {
+        		r = objects.get(o);
+        	} finally {
+        		readLock.unlock();
+        	}
             // Auto PK indexing: if we know this object it *must* be in our cache
         	// No indexing: we *may* have it in our cache. If not, we have no way to find it
             if (topClassTable.table.autoIndex || topClassTable.table.primaryKey==null)
@@ -1236,15 +1688,30 @@ public final class ClassTable {
 
         
         ObjectRecord getById(Integer id) {
-        	WeakReference<ObjectRecord> ref = ids.get(id);
-            // Not in cache?
-            if (ref==null)
-                return null;
-            ObjectRecord r = ref.get();
-            // In cache but reference cleared by GC? Update our cache
-            if (r==null)
-            	ids.remove(id);
-            return r;
+        	// Not under our lock: the second-level cache may call expired()
+        	if (second!=null) {
+        		ObjectRecord r = second.get(id);
+        		if (r!=null)
+        			return r;
+        	}
+        	readLock.lock();
+        	try {
+        		return ids.get(id.intValue());
+        	} finally {
+        		readLock.unlock();
+        	}
+        }
+        
+        
+        ObjectRecord getById(int id) {
+        	if (second!=null)
+        		return getById(Integer.valueOf(id));
+        	readLock.lock();
+        	try {
+        		return ids.get(id);
+        	} finally {
+        		readLock.unlock();
+        	}
         }
         
         
@@ -1254,26 +1721,315 @@ public final class ClassTable {
         	Object o = r.object();
         	if (o==null)
         		return;
-            objects.put(o, r);
-            ids.put(r.id, new WeakReference<ObjectRecord>(r));
+        	writeLock.lock();
+        	try {
+        		objects.expunge();
+        		ids.expunge();
+        		objects.put(o, r);
+        		ids.put(r.id.intValue(), r);
+        	} finally {
+        		writeLock.unlock();
+        	}
+            if (second!=null)
+            	second.put(r);
         }
         
         
         void remove (ObjectRecord r) {
-            objects.remove(r.object());
-            ids.remove(r.id);
+        	writeLock.lock();
+        	try {
+        		Object o = r.object();
+        		if (o!=null)
+        			objects.remove(o);
+        		if (r.id!=null)
+        			ids.remove(r.id.intValue(), r);
+        	} finally {
+        		writeLock.unlock();
+        	}
+            if (second!=null && r.id!=null)
+            	second.remove(r.id);
+        }
+        
+        
+        /**
+         * Marks an object dropped from the second-level cache on expiry as
+         * stale, so that its values are read again by the next query of its
+         * row. It stays in this cache while in use, keeping its identity.
+         */
+        public void expired (ObjectRecord r) {
+        	r.expire();
         }
         
         
         String size() {
-        	StringBuffer sb = new StringBuffer();
-        	sb.append(objects.size());
-        	sb.append("/");
-        	sb.append(ids.size());
-        	return sb.toString();
+        	writeLock.lock();
+        	try {
+        		objects.expunge();
+        		ids.expunge();
+        		StringBuffer sb = new StringBuffer();
+        		sb.append(objects.size());
+        		sb.append("/");
+        		sb.append(ids.size());
+        		return sb.toString();
+        	} finally {
+        		writeLock.unlock();
+        	}
         }
     }
     
     
     
+    /**
+     * A hash map from objects, compared by identity (not
+     * <code>equals()</code>), to their records. Objects are weakly
+     * referenced: entries of collected objects are queued, and removed on
+     * {@link #expunge()}. Not synchronized.
+     */
+    static final class WeakIdentityMap {
+    	
+    	private final ReferenceQueue<Object> queue;
+    	private Key[] table;
+    	private int size;
+    	
+    	WeakIdentityMap () {
+    		this.queue = new ReferenceQueue<Object>();
+    		this.table = new Key[64];
+    	}
+    	
+    	ObjectRecord get (Object o) {
+    		Key[] t = table;
+    		int h = hash(o);
+    		for (Key k=t[h&(t.length-1)]; k!=null; k=k.next)
+    			if (k.hash==h && k.get()==o)
+    				return k.record;
+    		return null;
+    	}
+    	
+    	void put (Object o, ObjectRecord r) {
+    		int h = hash(o);
+    		int i = h&(table.length-1);
+    		for (Key k=table[i]; k!=null; k=k.next)
+    			if (k.hash==h && k.get()==o) {
+    				k.record = r;
+    				return;
+    			}
+    		table[i] = new Key(o, queue, h, r, table[i]);
+    		if (++size>table.length*3/4)
+    			resize();
+    	}
+    	
+    	void remove (Object o) {
+    		int h = hash(o);
+    		int i = h&(table.length-1);
+    		for (Key k=table[i], p=null; k!=null; p=k, k=k.next)
+    			if (k.hash==h && k.get()==o) {
+    				unlink(i, p, k);
+    				k.clear();
+    				return;
+    			}
+    	}
+    	
+    	/**
+    	 * Removes the entries of collected objects.
+    	 */
+    	void expunge () {
+    		Reference<? extends Object> ref;
+    		while ((ref = queue.poll())!=null) {
+    			Key e = (Key)ref;
+    			int i = e.hash&(table.length-1);
+    			for (Key k=table[i], p=null; k!=null; p=k, k=k.next)
+    				if (k==e) {
+    					unlink(i, p, k);
+    					break;
+    				}
+    		}
+    	}
+    	
+    	int size () {
+    		return size;
+    	}
+    	
+    	private void unlink (int i, Key p, Key k) {
+    		if (p==null)
+    			table[i] = k.next;
+    		else
+    			p.next = k.next;
+    		k.record = null;
+    		size--;
+    	}
+    	
+    	private void resize () {
+    		Key[] t = new Key[table.length*2];
+    		for (int i=0; i<table.length; i++)
+    			for (Key k=table[i], n; k!=null; k=n) {
+    				n = k.next;
+    				int j = k.hash&(t.length-1);
+    				k.next = t[j];
+    				t[j] = k;
+    			}
+    		table = t;
+    	}
+    	
+    	private static int hash (Object o) {
+    		int h = System.identityHashCode(o);
+    		return h^(h>>>16);
+    	}
+    	
+    	
+    	private static final class Key
+    	extends WeakReference<Object> {
+    		
+    		final int hash;
+    		ObjectRecord record;
+    		Key next;
+    		
+    		Key (Object o, ReferenceQueue<Object> queue, int hash, ObjectRecord record, Key next) {
+    			super(o, queue);
+    			this.hash = hash;
+    			this.record = record;
+    			this.next = next;
+    		}
+    		
+    	}
+    	
+    }
+    
+    
+    
+    /**
+     * An open-addressing (linear probing) hash map from object IDs, as
+     * primitive <code>int</code>s, to weakly referenced records. References
+     * to collected records are queued, and their slots freed on
+     * {@link #expunge()}. Not synchronized.
+     */
+    static final class IdIndex {
+    	
+    	private final ReferenceQueue<ObjectRecord> queue;
+    	private int[] keys;
+    	// null for free slots
+    	private Ref[] refs;
+    	private int size;
+    	
+    	IdIndex () {
+    		this.queue = new ReferenceQueue<ObjectRecord>();
+    		this.keys = new int[64];
+    		this.refs = new Ref[64];
+    	}
+    	
+    	ObjectRecord get (int id) {
+    		int[] k = keys;
+    		Ref[] r = refs;
+    		int mask = k.length-1;
+    		for (int i=slot(id, mask); r[i]!=null; i=(i+1)&mask)
+    			if (k[i]==id)
+    				return r[i].get();
+    		return null;
+    	}
+    	
+    	void put (int id, ObjectRecord record) {
+    		int mask = keys.length-1;
+    		int i = slot(id, mask);
+    		for (; refs[i]!=null; i=(i+1)&mask)
+    			if (keys[i]==id) {
+    				if (refs[i].get()!=record)
+    					refs[i] = new Ref(record, queue, id);
+    				return;
+    			}
+    		keys[i] = id;
+    		refs[i] = new Ref(record, queue, id);
+    		// At most half full, to keep probe sequences short
+    		if (++size>keys.length/2)
+    			resize();
+    	}
+    	
+    	/**
+    	 * Removes this ID if it maps to this record.
+    	 */
+    	void remove (int id, ObjectRecord record) {
+    		int mask = keys.length-1;
+    		for (int i=slot(id, mask); refs[i]!=null; i=(i+1)&mask)
+    			if (keys[i]==id) {
+    				if (refs[i].get()==record)
+    					delete(i);
+    				return;
+    			}
+    	}
+    	
+    	/**
+    	 * Frees the slots of collected records.
+    	 */
+    	void expunge () {
+    		Reference<? extends ObjectRecord> ref;
+    		while ((ref = queue.poll())!=null) {
+    			Ref e = (Ref)ref;
+    			int mask = keys.length-1;
+    			for (int i=slot(e.id, mask); refs[i]!=null; i=(i+1)&mask)
+    				if (refs[i]==e) {
+    					delete(i);
+    					break;
+    				}
+    		}
+    	}
+    	
+    	int size () {
+    		return size;
+    	}
+    	
+    	/**
+    	 * Frees slot <code>i</code>, shifting back the following entries of
+    	 * its probe sequence (no tombstones).
+    	 */
+    	private void delete (int i) {
+    		int mask = keys.length-1;
+    		for (int j=(i+1)&mask; refs[j]!=null; j=(j+1)&mask) {
+    			int k = slot(keys[j], mask);
+    			// Stays if its home slot is cyclically within (i, j]
+    			if (i<=j ? (i<k && k<=j) : (i<k || k<=j))
+    				continue;
+    			keys[i] = keys[j];
+    			refs[i] = refs[j];
+    			i = j;
+    		}
+    		refs[i] = null;
+    		size--;
+    	}
+    	
+    	private void resize () {
+    		int[] k = keys;
+    		Ref[] r = refs;
+    		keys = new int[k.length*2];
+    		refs = new Ref[k.length*2];
+    		int mask = keys.length-1;
+    		for (int j=0; j<k.length; j++)
+    			if (r[j]!=null) {
+    				int i = slot(k[j], mask);
+    				while (refs[i]!=null)
+    					i = (i+1)&mask;
+    				keys[i] = k[j];
+    				refs[i] = r[j];
+    			}
+    	}
+    	
+    	private static int slot (int id, int mask) {
+    		int h = id*0x9e3779b9;
+    		return (h^(h>>>16))&mask;
+    	}
+    	
+    	
+    	private static final class Ref
+    	extends WeakReference<ObjectRecord> {
+    		
+    		final int id;
+    		
+    		Ref (ObjectRecord record, ReferenceQueue<ObjectRecord> queue, int id) {
+    			super(record, queue);
+    			this.id = id;
+    		}
+    		
+    	}
+    	
+    }
+    
+    
+    
 }
\ No newline at end of file
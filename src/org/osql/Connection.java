@@ -17,6 +17,8 @@
 package org.osql;
 
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 
@@ -28,6 +30,12 @@ public class Connection {
     
     byte defaultAccess = ObjectRecord.RWR_R_;
     
+    /**
+     * Operations of <code>AsyncConnection</code>s running on this
+     * connection, created by the first of them.
+     */
+    AsyncConnection.Throttle throttle;
+    
     
     Connection (Database db, User user)
     throws OSQLException {
@@ -47,6 +55,17 @@ public class Connection {
     }
     
     
+    public void storeAll (Collection c)
+    throws OSQLException {
+        db.storeAll(this, c, defaultAccess);
+    }
+    
+    public void storeAll (Collection c, byte access)
+    throws OSQLException {
+        db.storeAll(this, c, access);
+    }
+    
+    
     public Object get (Class c, String where)
     throws OSQLException {
         return db.get(this, c, where, null);
@@ -57,6 +76,11 @@ public class Connection {
         return db.get(this, c, where, order);
     }
         
+    public Object get (Class c, String where, String order, FetchPlan plan)
+    throws OSQLException {
+        return db.get(this, c, where, order, plan);
+    }
+        
     public Object getFirst (Class c)
     throws OSQLException {
         return db.get(this, c, null, null);
@@ -72,6 +96,63 @@ public class Connection {
         return db.get(this, c, where, "\".id\" DESC");
     }
     
+    /**
+     * Returns the stored object of this class with this ID,
+     * <code>null</code> if none, from the object cache if it holds it.
+     */
+    public Object get (Class c, int id)
+    throws OSQLException {
+        return db.get(this, c, id);
+    }
+    
+    /**
+     * Returns the stored objects of this class with these IDs, in the same
+     * order, leaving out IDs without object. Objects not in the object
+     * cache are selected together.
+     */
+    public List getAll (Class c, int[] ids)
+    throws OSQLException {
+        return db.getAll(this, c, ids);
+    }
+    
+    /**
+     * Returns the first stored object matching <code>where</code>, whose
+     * bind variables (<code>?</code>) take the values of <code>args</code>,
+     * e.g. <code>find(Person.class, "age > ? AND name = ?", new Object[]
+     * {new Integer(18), name})</code>. The translated query is kept and run
+     * as a prepared statement, whatever the values.
+     */
+    public Object find (Class c, String where, Object[] args)
+    throws OSQLException {
+        return db.get(this, c, where, null, null, args);
+    }
+    
+    public Object find (Class c, String where, String order, Object[] args)
+    throws OSQLException {
+        return db.get(this, c, where, order, null, args);
+    }
+    
+    /**
+     * Returns the stored objects matching <code>where</code>, whose bind
+     * variables (<code>?</code>) take the values of <code>args</code>.
+     * 
+     * @see #find(Class, String, Object[])
+     */
+    public List findAll (Class c, String where, Object[] args)
+    throws OSQLException {
+        return db.getAll(this, c, where, null, null, null, 0, 0, args);
+    }
+    
+    public List findAll (Class c, String where, String order, Object[] args)
+    throws OSQLException {
+        return db.getAll(this, c, where, null, order, null, 0, 0, args);
+    }
+    
+    public List findAll (Class c, String where, String order, int offset, int limit, Object[] args)
+    throws OSQLException {
+        return db.getAll(this, c, where, null, order, null, offset, limit, args);
+    }
+    
     public List getAll (Class c)
     throws OSQLException {
         return db.getAll(this, c, null, null);
@@ -87,6 +168,134 @@ public class Connection {
         return db.getAll(this, c, where, order);
     }
     
+    /**
+     * Returns at most <code>limit</code> stored objects (all if
+     * <code>0</code>), skipping the first <code>offset</code> ones.
+     */
+    public List getAll (Class c, String where, String order, int offset, int limit)
+    throws OSQLException {
+        return db.getAll(this, c, where, order, offset, limit);
+    }
+    
+    /**
+     * Returns the page of at most <code>limit</code> stored objects following
+     * object <code>last</code> (the first page if <code>null</code>) in the
+     * order of field <code>key</code> (e.g. <code>"name DESC"</code> or
+     * <code>"\".id\""</code>). Pages are sought through the key, not
+     * counted from the first object.
+     */
+    public List getAfter (Class c, String where, String key, Object last, int limit)
+    throws OSQLException {
+        return db.getAfter(this, c, where, key, last, limit);
+    }
+    
+    /**
+     * Returns the page of at most <code>limit</code> stored objects following
+     * the one of this key value and ID in the order of field
+     * <code>key</code>, e.g. as read from the last object of the previous
+     * page once it has been discarded.
+     */
+    public List getAfter (Class c, String where, String key, Object lastKey, int lastId, int limit)
+    throws OSQLException {
+        return db.getAfter(this, c, where, key, lastKey, lastId, limit);
+    }
+    
+    /**
+     * Returns stored objects along with the objects they reference through
+     * the paths of this fetch plan, all selected by a single query.
+     */
+    public List getAll (Class c, String where, String order, FetchPlan plan)
+    throws OSQLException {
+        return db.getAll(this, c, where, order, plan);
+    }
+    
+    
+    /**
+     * Returns the values of these fields of stored objects, as
+     * <code>Object[]</code> rows, without restoring the objects. Fields of
+     * referenced objects are given by paths, as in WHERE clauses (e.g.
+     * <code>"customer.name"</code>); reference fields give object IDs.
+     */
+    public List project (Class c, String[] fields, String where, String order)
+    throws OSQLException {
+        return db.project(this, c, null, fields, where, order);
+    }
+    
+    /**
+     * Returns the values of these fields of stored objects as rows of class
+     * <code>row</code> (e.g. a record), created through its constructor
+     * taking one argument per field.
+     */
+    public List project (Class c, Class row, String[] fields, String where, String order)
+    throws OSQLException {
+        return db.project(this, c, row, fields, where, order);
+    }
+    
+    public int[] projectInts (Class c, String field, String where, String order)
+    throws OSQLException {
+        return (int[])db.projectArray(this, c, int.class, field, where, order);
+    }
+    
+    public long[] projectLongs (Class c, String field, String where, String order)
+    throws OSQLException {
+        return (long[])db.projectArray(this, c, long.class, field, where, order);
+    }
+    
+    public double[] projectDoubles (Class c, String field, String where, String order)
+    throws OSQLException {
+        return (double[])db.projectArray(this, c, double.class, field, where, order);
+    }
+    
+    
+    /**
+     * Returns a cursor over stored objects, restored as they are iterated
+     * over, {@link Cursor#DEFAULT_FETCH_SIZE} at a time. It must be closed
+     * if not read to the end.
+     */
+    public Cursor stream (Class c, String where, String order)
+    throws OSQLException {
+        return db.stream(this, c, where, order, Cursor.DEFAULT_FETCH_SIZE);
+    }
+    
+    public Cursor stream (Class c, String where, String order, int fetchSize)
+    throws OSQLException {
+        return db.stream(this, c, where, order, fetchSize);
+    }
+    
+    
+    /**
+     * Fetches the objects lazy references of this object point to, if not
+     * done yet. References are lazy if declared so by the
+     * <code>lazy</code> table property of their class: <code>lazy=true</code>
+     * for all of them, or <code>lazy=field1,field2</code>.
+     */
+    public void fetch (Object o)
+    throws OSQLException {
+        db.fetchAll(this, Collections.singletonList(o));
+    }
+    
+    /**
+     * Fetches the objects lazy references of these objects point to, with
+     * one query per referenced class rather than one per reference.
+     */
+    public void fetchAll (Collection c)
+    throws OSQLException {
+        db.fetchAll(this, c);
+    }
+    
+    
+    /**
+     * Sets this reference field of an object to <code>null</code>, to be
+     * stored as <code>NULL</code>. Needed for a lazy reference not fetched
+     * yet: its field is <code>null</code> already, so assigning
+     * <code>null</code> cannot be told from leaving it unfetched (which
+     * keeps the stored reference).
+     */
+    public void clear (Object o, String field)
+    throws OSQLException {
+        db.clear(this, o, field);
+    }
+    
     
     public boolean remove (Object o)
     throws OSQLException {
@@ -104,11 +313,56 @@ public class Connection {
     }    
     
     
+    /**
+     * Starts a transaction: following store and remove operations from this
+     * thread are committed together by {@link #commit()}, or discarded by
+     * {@link #rollback()}. A failed operation rolls the whole transaction
+     * back.
+     */
+    public void begin ()
+    throws OSQLException {
+        db.begin(this);
+    }
+    
+    public void commit ()
+    throws OSQLException {
+        db.commit(this);
+    }
+    
+    public void rollback ()
+    throws OSQLException {
+        db.rollback(this);
+    }
+    
+    
+    /**
+     * Computes aggregates of stored objects in the database, such as
+     * <code>"SUM(amount)"</code> or <code>"COUNT(DISTINCT customer.name)"</code>,
+     * per group of objects with the same values of the <code>groupBy</code>
+     * field paths (over all objects if <code>null</code>).
+     */
+    public Aggregate aggregate (Class c, String where, String[] expressions, String[] groupBy)
+    throws OSQLException {
+        return db.aggregate(this, c, where, expressions, groupBy);
+    }
+    
+    
     public int count (Class c)
     throws OSQLException {
         return db.count(this, c, null);
     }
     
+    /**
+     * Counts the stored objects matching <code>where</code>, whose bind
+     * variables (<code>?</code>) take the values of <code>args</code>.
+     * 
+     * @see #find(Class, String, Object[])
+     */
+    public int count (Class c, String where, Object[] args)
+    throws OSQLException {
+    	return db.count(this, c, where, args);
+    }
+    
     public int count (Class c, String where)
     throws OSQLException {
         return db.count(this, c, where);
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) Olivier Cornu 2004-2009 <o.cornu@gmail.com>
+ *
+ * This is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.osql;
+
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A bounded pool of physical connections to the SQL database.
+ * <p>
+ * Every client request leases a {@link Session} for its own use, so that
+ * independent clients do not queue behind each other on a single SQL
+ * connection. Sessions are opened lazily, up to the pool size; further
+ * requests wait for a session to be released, for at most
+ * {@link #DEFAULT_TIMEOUT} milliseconds (or as set by
+ * {@link #setTimeout(long)}).
+ */
+final class ConnectionPool {
+
+
+	/**
+	 * The default delay (in milliseconds) a request waits for a session.
+	 */
+	static final long DEFAULT_TIMEOUT = 10000;
+
+
+	private final String url;
+	private final String login;
+	private final String pwd;
+	private final int size;
+	private volatile long timeout;
+
+	/**
+	 * Number of sessions which can still be leased.
+	 */
+	private final Semaphore available;
+	/**
+	 * Sessions opened and not currently leased.
+	 */
+	private final ConcurrentLinkedQueue<Session> idle;
+	private volatile boolean closed;
+
+
+	ConnectionPool (String url, String login, String pwd, int size) {
+		if (size<1)
+			throw new OSQLException("Invalid connection pool size: "+size);
+		this.url = url;
+		this.login = login;
+		this.pwd = pwd;
+		this.size = size;
+		this.timeout = DEFAULT_TIMEOUT;
+		this.available = new Semaphore(size, true);
+		this.idle = new ConcurrentLinkedQueue<Session>();
+	}
+
+
+	/**
+	 * Leases a session, opening a new physical connection if none is idle.
+	 * Waits for a session to be released if the pool is exhausted.
+	 *
+	 * @return	a <code>Session</code> for the exclusive use of the caller
+	 * @throws OSQLException	thrown if the pool is closed, no session is
+	 * 							released in time, the wait is interrupted or
+	 * 							a new connection cannot be opened
+	 */
+	Session lease ()
+	throws OSQLException {
+		try {
+			if (!available.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+				throw new OSQLException("Timed out waiting for one of the "+size+" SQL connections to be released.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OSQLException("Interrupted while waiting for an SQL connection.", e);
+		}
+		if (closed) {
+			available.release();
+			throw new OSQLException("Database is closed.");
+		}
+		Session s = idle.poll();
+		if (s!=null)
+			return s;
+		try {
+			return new Session(DriverManager.getConnection(url, login, pwd));
+		} catch (SQLException e) {
+			available.release();
+			throw new OSQLException("Failed to connect to SQL database.", e);
+		}
+	}
+
+
+	/**
+	 * Sets how long a request waits for a session when the pool is
+	 * exhausted.
+	 *
+	 * @param timeout	the delay, in milliseconds
+	 */
+	void setTimeout (long timeout) {
+		if (timeout<1)
+			throw new OSQLException("Invalid connection pool timeout: "+timeout);
+		this.timeout = timeout;
+	}
+
+
+	/**
+	 * Gives a leased session back to the pool. Its changes must have been
+	 * either committed or rolled back.
+	 */
+	void release (Session s) {
+		if (closed)
+			s.close();
+		else
+			idle.offer(s);
+		available.release();
+	}
+
+
+	/**
+	 * Gives back the lease of a session which was closed after a failure.
+	 */
+	void discard () {
+		available.release();
+	}
+
+
+	/**
+	 * Closes all idle sessions. Leased ones are closed when released.
+	 */
+	void close () {
+		closed = true;
+		Session s;
+		while ((s=idle.poll())!=null)
+			s.close();
+	}
+
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) Olivier Cornu 2004-2009 <o.cornu@gmail.com>
+ *
+ * This is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.osql;
+
+
+import java.io.Closeable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Iterates over the objects of a query, restoring them from an open
+ * <code>ResultSet</code> as they are needed, a fetch size at a time.
+ * <p>
+ * A cursor holds a session, and the read lock of the queried class
+ * hierarchy, until it is closed: it closes itself once all objects have
+ * been read, or on error, but must be closed explicitly if left before
+ * (e.g. in a <code>finally</code> block). Meanwhile objects of that
+ * hierarchy cannot be stored by the thread which opened it (other objects
+ * can, and are unlocked as soon as stored), and stores of others may wait
+ * for it. A cursor may only be used by the thread which opened it.
+ */
+public final class Cursor
+implements Iterator, Closeable {
+
+
+	/**
+	 * The default number of objects restored at once.
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 100;
+
+
+	private final Database db;
+	private final Connection conn;
+	private final ClassTable table;
+	private final ResultSet rs;
+	private final ReentrantReadWriteLock.ReadLock lock;
+	private final Database.RequestCache requestCache;
+	private final Thread owner;
+	private final int fetchSize;
+
+	/**
+	 * Objects restored but not returned yet.
+	 */
+	private final ArrayList buffer;
+	private int next;
+	private boolean closed;
+
+
+	/**
+	 * Takes over this result set, this lock and the request opened for
+	 * them, all released by {@link #close()}.
+	 */
+	Cursor (Database db, Connection conn, ClassTable table, ResultSet rs, ReentrantReadWriteLock.ReadLock lock, int fetchSize) {
+		this.db = db;
+		this.conn = conn;
+		this.table = table;
+		this.rs = rs;
+		this.lock = lock;
+		this.requestCache = db.requestCache();
+		this.owner = Thread.currentThread();
+		this.fetchSize = fetchSize;
+		this.buffer = new ArrayList(fetchSize);
+	}
+
+
+	public boolean hasNext ()
+	throws OSQLException {
+		if (next<buffer.size())
+			return true;
+		buffer.clear();
+		next = 0;
+		// Subclass rows of deleted objects may leave a batch empty
+		while (!closed && buffer.isEmpty()) {
+			checkOwner();
+			boolean done = false;
+			boolean ok = false;
+			try {
+				done = db.restoreNext(conn, table, rs, buffer, fetchSize);
+				ok = true;
+			} finally {
+				if (done || !ok)
+					close();
+			}
+		}
+		return !buffer.isEmpty();
+	}
+
+
+	public Object next ()
+	throws OSQLException {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Object o = buffer.get(next);
+		// Let returned objects be garbage collected
+		buffer.set(next++, null);
+		return o;
+	}
+
+
+	public void remove () {
+		throw new UnsupportedOperationException("Objects are removed through Connection.remove(Object).");
+	}
+
+
+	/**
+	 * Returns whether this cursor has been closed.
+	 */
+	public boolean isClosed () {
+		return closed;
+	}
+
+
+	/**
+	 * Closes the result set, and releases the lock and session of this
+	 * cursor. Does nothing if already closed.
+	 */
+	public void close ()
+	throws OSQLException {
+		if (closed)
+			return;
+		checkOwner();
+		closed = true;
+		try {
+			Database.close(rs);
+		} catch (SQLException e) {
+			// The statement is dropped with the session anyway
+		} finally {
+			lock.unlock();
+			requestCache.close();
+		}
+	}
+
+
+	/**
+	 * Locks and requests are per thread: they can only be released by the
+	 * thread which acquired them.
+	 */
+	private void checkOwner ()
+	throws OSQLException {
+		if (Thread.currentThread()!=owner)
+			throw new OSQLException("Cursor used outside of the thread which opened it.");
+	}
+
+
+	public String toString () {
+		return "Cursor on "+table.className+(closed ? " (closed)" : "");
+	}
+
+
+}
@@ -21,19 +21,35 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Vector;
 import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.osql.parser.ParseException;
 import org.osql.parser.Parser;
@@ -56,10 +72,36 @@ public final class Database {
      * The default JDBC driver to use if user does not fursnish is own.
      */
     public static final String DEFAULT_DRIVER   = "org.hsqldb.jdbcDriver";
+    /**
+     * The default maximum number of SQL connections opened to serve client
+     * requests.
+     */
+    public static final int DEFAULT_POOL_SIZE   = 8;
+    /**
+     * How long (in milliseconds) a writer waits for a class hierarchy before
+     * giving up.
+     */
+    static final long LOCK_TIMEOUT              = 10000;
+    /**
+     * How many rows {@link #storeAll(Connection, Collection, byte)} batches
+     * before sending them to the database.
+     */
+    static final int BATCH_SIZE                 = 1000;
+    /**
+     * How many IDs {@link #getAll(Connection, Class, int[])} selects per
+     * <code>IN</code> list.
+     */
+    static final int IN_LIST_SIZE               = 1000;
+    /**
+     * Aggregate expressions: function, <code>DISTINCT</code> and field path.
+     */
+    private static final Pattern AGGREGATE      = Pattern.compile("\\s*(COUNT|SUM|MIN|MAX|AVG)\\s*\\(\\s*(DISTINCT\\s+)?(.+?)\\s*\\)\\s*", Pattern.CASE_INSENSITIVE);
     
     private final String url;
-	final java.sql.Connection connection;	        // Connection to database
-	final Statement statement;		// Request statement
+	final Session system;	        // Connection to database for system tables
+	private final ConnectionPool pool;	// Connections to database for client requests
+	private volatile GroupCommit groupCommit;	// Shared commits of concurrent stores (if any)
+	private final WriteBehind writeBehind = new WriteBehind(this);	// Deferred stores
     
     
     // Admin user connection
@@ -68,14 +110,22 @@ public final class Database {
     // Cache for classes
 	private final WeakHashMap tables;	         // Existing class --> Table
 
-    // Request parsing
-    private final StringBuffer parseBuffer = new StringBuffer();
-    private final StringReader reader	= new StringReader("");
-    private final Parser parser			= new Parser(reader);
-    
-    
-    // Current objects processed
-    final RequestCache requestCache;
+    // Request parsing (one parser per thread)
+    private final ThreadLocal<WhereParser> parsers = new ThreadLocal<WhereParser>() {
+    	protected WhereParser initialValue() {
+    		return new WhereParser();
+    	}
+    };
+
+    // System tables (classes, users, groups) are updated by one thread at a time
+    final ReentrantLock systemLock = new ReentrantLock();
+
+    // Current objects processed (one request cache per thread)
+    private final ThreadLocal<RequestCache> requestCaches = new ThreadLocal<RequestCache>() {
+    	protected RequestCache initialValue() {
+    		return new RequestCache();
+    	}
+    };
 /*    final IdentityHashMap   processedObjects;
     final HashMap           processedIds;
 */
@@ -111,7 +161,7 @@ public final class Database {
     
     public Database (String url, String login, String pwd)
     throws OSQLException {
-        this(DEFAULT_DRIVER, url, login, pwd, new TableNameMapper(), LOG_NORMAL);
+        this(DEFAULT_DRIVER, url, login, pwd, new TableNameMapper(), LOG_NORMAL, DEFAULT_POOL_SIZE);
     }
     
     public Database (String url,
@@ -119,7 +169,7 @@ public final class Database {
     				 String pwd,
     				 TableNameMapper wrapper)
     throws OSQLException {
-        this(DEFAULT_DRIVER, url, login, pwd, wrapper, LOG_NORMAL);
+        this(DEFAULT_DRIVER, url, login, pwd, wrapper, LOG_NORMAL, DEFAULT_POOL_SIZE);
     }
     
     public Database (String url,
@@ -127,7 +177,7 @@ public final class Database {
     				 String pwd,
     				 byte logLevel)
     throws OSQLException {
-        this(DEFAULT_DRIVER, url, login, pwd, new TableNameMapper(), logLevel);
+        this(DEFAULT_DRIVER, url, login, pwd, new TableNameMapper(), logLevel, DEFAULT_POOL_SIZE);
     }
     
     public Database (String url,
@@ -136,7 +186,17 @@ public final class Database {
     				 TableNameMapper wrapper,
     				 byte logLevel)
     throws OSQLException {
-    	this(DEFAULT_DRIVER, url, login, pwd, wrapper, logLevel);
+    	this(DEFAULT_DRIVER, url, login, pwd, wrapper, logLevel, DEFAULT_POOL_SIZE);
+    }
+    
+    public Database (String url,
+    				 String login,
+    				 String pwd,
+    				 TableNameMapper wrapper,
+    				 byte logLevel,
+    				 int poolSize)
+    throws OSQLException {
+    	this(DEFAULT_DRIVER, url, login, pwd, wrapper, logLevel, poolSize);
     }
 
 	private Database (String driver,
@@ -144,7 +204,8 @@ public final class Database {
 					  String login,
 					  String pwd,
 					  TableNameMapper wrapper,
-					  byte logLevel)
+					  byte logLevel,
+					  int poolSize)
 	throws OSQLException {
         this.startTime = System.currentTimeMillis();
         this.logLevel = logLevel;
@@ -165,13 +226,11 @@ public final class Database {
 		} catch (ClassNotFoundException e) {
 			throw new OSQLException("Class not found: "+driver+"\nFailed to load SQL driver.", e);
 		}
-        // Init database connection
+        // Init client connections pool
+        this.pool = new ConnectionPool(url, login, pwd, poolSize);
+        // Init system database connection
 		try {
-			this.connection = DriverManager.getConnection (url, login, pwd);
-			this.statement = connection.createStatement();
-            // Set autocommit to off, so we can rollback in case of error
-            this.connection.setAutoCommit(false);
-            this.connection.commit();
+			this.system = new Session(DriverManager.getConnection (url, login, pwd));
 		} catch (SQLException e) {
             quit();
 			throw new OSQLException("Failed to connect to SQL database.", e);
@@ -179,14 +238,11 @@ public final class Database {
         
 		// Init class tables map and objects map
         this.tables = new WeakHashMap();
-        // Init processed objects map (to avoid infinite loops with recursive referencing)
-        this.requestCache = new RequestCache();
-        
         // Check if OSQL system tables already exist in database
         try {
-        	ResultSet rs = statement.executeQuery("SELECT top 1 * from \""+User.OSQL_TABLE_NAME+"\"");
+        	ResultSet rs = system.statement.executeQuery("SELECT top 1 * from \""+User.OSQL_TABLE_NAME+"\"");
             rs.close();
-            rs = statement.executeQuery("SELECT top 1 * from \""+ClassTable.OSQL_TABLE_NAME+"\"");
+            rs = system.statement.executeQuery("SELECT top 1 * from \""+ClassTable.OSQL_TABLE_NAME+"\"");
             rs.close();
         } catch (SQLException e) {
             // New OSQL database
@@ -195,13 +251,13 @@ public final class Database {
                     out.println("*** Creating system tables...");
                 // Create References table
                 try {
-                    statement.executeUpdate("CREATE TABLE \".Group\" ("+
+                    system.statement.executeUpdate("CREATE TABLE \".Group\" ("+
                         " \"id\" SMALLINT NOT NULL"+
                         ", \"name\" VARCHAR NOT NULL"+
                         ", PRIMARY KEY (\"id\")"+
                         ", UNIQUE (\"name\")"+
                         " )");
-                    statement.executeUpdate("CREATE TABLE \""+User.OSQL_TABLE_NAME+"\" ("+
+                    system.statement.executeUpdate("CREATE TABLE \""+User.OSQL_TABLE_NAME+"\" ("+
                         " \"id\" SMALLINT NOT NULL"+
                         ", \"login\" VARCHAR NOT NULL"+
                         ", \"password\" VARCHAR NOT NULL"+
@@ -211,13 +267,14 @@ public final class Database {
                         ", UNIQUE (\"login\")"+
                         ", FOREIGN KEY (\"group\") REFERENCES \".Group\" (\"id\")" +
                         " )");
-                    statement.executeUpdate("CREATE TABLE \""+ClassTable.OSQL_TABLE_NAME+"\" ("+
+                    system.statement.executeUpdate("CREATE TABLE \""+ClassTable.OSQL_TABLE_NAME+"\" ("+
                         " \"id\" SMALLINT NOT NULL"+
                         ", \"class\" VARCHAR"+
                         ", \"superclass\" SMALLINT"+
                         ", PRIMARY KEY (\"id\")"+
                         ", UNIQUE (\"class\")"+
                         " )");
+                    Sequence.createTable(system.statement);
                 } catch (SQLException ee) {
                     throw new OSQLException("Failed to create system tables.", ee);
                 }
@@ -239,6 +296,18 @@ public final class Database {
         // Existing OSQL database
         if (this.logLevel>LOG_NORMAL)
             out.println("*** Loading system tables...");
+        // Databases created before IDs were reserved by blocks lack this one
+        try {
+        	ResultSet rs = system.statement.executeQuery("SELECT top 1 * from \""+Sequence.OSQL_TABLE_NAME+"\"");
+            rs.close();
+        } catch (SQLException e) {
+        	try {
+        		Sequence.createTable(system.statement);
+        	} catch (SQLException ee) {
+        		quit();
+                throw new OSQLException("Failed to create system tables.", ee);
+        	}
+        }
         // Restore admin user
         sysConn = new AdminConnection(this, new User(this, "root", pwd));
         
@@ -263,12 +332,15 @@ public final class Database {
      * guaranties all object properties are stored.</li>
      * <li><i>recursive</i>: any other object contained in this
      * <code>Object</code> is stored as well. This garanties full retrieval of
-     * stored objects.</li>
+     * stored objects. Referenced objects which are stored already and did
+     * not change are skipped along with the objects they reference.</li>
      * <li><i>atomic</i>: operation either succeeds or fails altogether (all
      * ongoing changes are rolled back if an error occurs). This garanties
      * stored data integrity.</li>
      * <li><i>thread safe</i>: this guaranties several concurrent threads can
-     * access the OSQL database seamlessly.
+     * access the OSQL database seamlessly. Every class hierarchy touched by
+     * the operation is locked for writing until it completes, so readers of
+     * those hierarchies wait while readers of other ones go on.
      * <li><i>state conscious</i>: operation results in SQL <code>INSERT</code>
      * queries for new objects and SQL <code>UPDATE</code> queries for existing
      * ones.</li>
@@ -288,7 +360,7 @@ public final class Database {
      * @throws OSQLException		thrown if any other error occurs during the 
      * 								storing process
      */
-    synchronized void store (Connection conn, Object o, byte access)
+    void store (Connection conn, Object o, byte access)
     throws OSQLAccessViolation, OSQLException {
     	// Check there indeed is an object to store
     	if (o==null)
@@ -296,16 +368,28 @@ public final class Database {
     	/*
     	 * Store object
     	 */
+        RequestCache requestCache = requestCache();
+        ClassTable ct = getClassTable(o.getClass());
+        if (requestCache.depth==0 && ct.table.writeBehind) {
+        	// Leave it to the background writer
+        	writeBehind.store(conn, ct, o, access);
+        	return;
+        }
+        GroupCommit groupCommit = this.groupCommit;
+        if (groupCommit!=null && requestCache.depth==0) {
+        	// Share a commit with concurrent requests
+        	groupCommit.store(conn, o, access);
+        	return;
+        }
+        requestCache.open();
         try {
             store(conn, o, null, access);
-            // Commit changes on success
-            connection.commit();
-            // Cache processed objects
-            requestCache.cacheAll();
+            // Commit changes and cache processed objects on success
+            requestCache.commit();
         } catch (OSQLException e) {
             try {
             	// Rollback changes on error
-                connection.rollback();
+                requestCache.rollback();
             } catch (SQLException se) {
                 throw new OSQLException("Could not rollback changes after error.", e);
             }
@@ -313,9 +397,178 @@ public final class Database {
         } catch (SQLException e) {
             throw new OSQLException("Could not commit changes to database.", e);
         } finally {
-        	// Whatever happens, clear request cache before exiting
-        	requestCache.clear();
+        	// Whatever happens, clear request cache and locks before exiting
+        	requestCache.close();
+        }
+    }
+
+    
+    /**
+     * Stores all objects of this <code>Collection</code> in a single
+     * transaction, with specified <code>access</code> rights.
+     * <p>
+     * Rows of new objects are not inserted one by one: they are batched per
+     * <code>ClassTable</code> and sent to the database a hierarchy level at
+     * a time, every {@link #BATCH_SIZE} rows. Top-level rows are batched only
+     * for auto-indexed classes without references to other objects; other
+     * rows (and updates) are processed as with
+     * {@link #store(Connection, Object, byte)}.
+     * 
+     * @param conn		the <code>Connection</code> this operation is done on
+     * 					behalf of
+     * @param c			the objects to store
+     * @param access	the UNIX-like access rights according to which further
+     * 					operations on these objects will be enforced
+     * @throws OSQLAccessViolation	thrown if an object cannot be stored dued
+     * 								to UNIX-like access rights enforcement  
+     * @throws OSQLException		thrown if any other error occurs during the 
+     * 								storing process
+     */
+    void storeAll (Connection conn, Collection c, byte access)
+    throws OSQLAccessViolation, OSQLException {
+    	if (c==null)
+    		return;
+        RequestCache requestCache = requestCache();
+        requestCache.open();
+        boolean batching = requestCache.batching;
+        requestCache.batching = true;
+        try {
+        	Iterator i = c.iterator();
+        	Object o;
+        	while (i.hasNext()) {
+        		o = i.next();
+        		if (o==null)
+        			continue;
+        		store(conn, o, null, access);
+        		if (requestCache.batched>=BATCH_SIZE)
+        			requestCache.flush();
+        	}
+        	requestCache.flush();
+            // Commit changes and cache processed objects on success
+            requestCache.commit();
+        } catch (OSQLException e) {
+            try {
+            	// Rollback changes on error
+                requestCache.rollback();
+            } catch (SQLException se) {
+                throw new OSQLException("Could not rollback changes after error.", e);
+            }
+            throw e;
+        } catch (SQLException e) {
+            try {
+                requestCache.rollback();
+            } catch (SQLException se) {}
+            throw new OSQLException("Could not store objects.", e);
+        } finally {
+        	requestCache.batching = batching;
+        	requestCache.discard();
+        	requestCache.close();
+        }
+    }
+
+    
+    /**
+     * Writes objects queued by write-behind. They are first stored in
+     * batches, in a single transaction; should it fail, they are stored
+     * again one by one, so that only failing objects are lost.
+     * 
+     * @param requests	the queued objects
+     * @return			how many objects could not be stored
+     * @throws OSQLException	thrown if objects could not be stored
+     */
+    int storeBehind (List<GroupCommit.Request> requests)
+    throws OSQLException {
+        RequestCache requestCache = requestCache();
+        requestCache.open();
+        requestCache.batching = true;
+        try {
+        	GroupCommit.Request r;
+        	for (int i=0; i<requests.size(); i++) {
+        		r = requests.get(i);
+        		store(r.conn, r.object, null, r.access);
+        		if (requestCache.batched>=BATCH_SIZE)
+        			requestCache.flush();
+        	}
+        	requestCache.flush();
+            requestCache.commit();
+            return 0;
+        } catch (OSQLException e) {
+        	// Fall back to one savepoint per object
+            try {
+                requestCache.rollback();
+            } catch (SQLException se) {}
+        } catch (SQLException e) {
+            try {
+                requestCache.rollback();
+            } catch (SQLException se) {}
+        } finally {
+        	requestCache.batching = false;
+        	requestCache.discard();
+        	requestCache.close();
+        }
+        storeGroup(requests);
+        int n = 0;
+        GroupCommit.Request r;
+    	for (int i=0; i<requests.size(); i++) {
+    		r = requests.get(i);
+    		if (r.error==null)
+    			continue;
+    		n++;
+    		out.println("*** Write-behind could not store "+r.object+": "+r.error.getMessage());
+    	}
+    	return n;
+    }
+
+    
+    /**
+     * Writes objects queued by write-behind if some belong to the hierarchy
+     * of this <code>ClassTable</code>, so that a query on it does not miss
+     * them or restore older rows. Not done within a request, whose locks
+     * the writes may need.
+     */
+    private void flushBehind (ClassTable t)
+    throws OSQLException {
+    	if (requestCache().depth==0)
+    		writeBehind.flush(t.topClassTable);
+    }
+
+    
+    /**
+     * Stores the objects of a group of concurrent requests in a single
+     * transaction. Each request runs behind a savepoint: a failed request is
+     * rolled back and given its error, without undoing the others.
+     * 
+     * @param group	the requests to process
+     * @throws OSQLException	thrown if the group cannot be committed
+     */
+    void storeGroup (List<GroupCommit.Request> group)
+    throws OSQLException {
+        RequestCache requestCache = requestCache();
+        requestCache.begin();
+        try {
+        	GroupCommit.Request r;
+        	Savepoint sp;
+        	for (int i=0; i<group.size(); i++) {
+        		r = group.get(i);
+        		sp = requestCache.session.connection.setSavepoint();
+        		try {
+        			store(r.conn, r.object, null, r.access);
+        			requestCache.commit();
+        		} catch (RuntimeException e) {
+        			requestCache.rollback(sp);
+        			r.error = e;
+        		} finally {
+        			requestCache.clear();
+        		}
+        	}
+        } catch (SQLException e) {
+        	requestCache.end(false);
+            throw new OSQLException("Could not store objects.", e);
+        } catch (RuntimeException e) {
+        	requestCache.end(false);
+        	throw e;
         }
+        requestCache.end(true);
     }
 
     
@@ -350,6 +603,7 @@ public final class Database {
      */
     ObjectRecord store (Connection conn, Object o, ObjectRecord parent, byte access)
     throws OSQLAccessViolation, OSQLException  {
+        RequestCache requestCache = requestCache();
         ObjectRecord r = requestCache.get(o);
         // Avoid infinite loops with self-referencing objects
         if (r!=null)
@@ -361,7 +615,9 @@ public final class Database {
 //            c = Array.class;
         
         ClassTable ct = getClassTable(c);
-        r = ct.cache.get(o);
+        // Keep readers of this class hierarchy out until we are done
+        requestCache.lock(ct);
+        r = requestCache.record(ct, o);
         // Do we know this object yet?
         if (r!=null) {
             // Yes, let's update its values
@@ -438,6 +694,37 @@ public final class Database {
         }
     }
     
+    
+    /**
+     * Returns the record of this referenced object if storing it would write
+     * nothing: it is cached and none of its fields changed since it was last
+     * restored or committed, <code>null</code> otherwise. Referencing
+     * objects then use its ID without locking its class hierarchy, nor
+     * walking through the objects it references: changes of those are only
+     * stored along with a changed referrer, or by storing them.
+     */
+    ObjectRecord clean (Connection conn, Object o)
+    throws OSQLException {
+    	RequestCache requestCache = requestCache();
+    	if (requestCache.get(o)!=null)
+    		return null;
+    	ClassTable ct = getClassTableFromCache(o.getClass());
+    	ObjectRecord r = ct==null ? null : ct.cache.get(o);
+    	if (r==null || r.isStale() || requestCache.removes(r) || !ct.isClean(conn, r))
+    		return null;
+    	return r;
+    }
+    
+    
+    /**
+     * Returns the record of this object if it is cached, <code>null</code>
+     * otherwise.
+     */
+    ObjectRecord cached (Object o) {
+    	ClassTable ct = getClassTableFromCache(o.getClass());
+    	return ct==null ? null : ct.cache.get(o);
+    }
+    
 
     /**
      * @param conn
@@ -445,20 +732,32 @@ public final class Database {
      * @return
      * @throws OSQLException
      */
-    synchronized boolean remove (Connection conn, Object o)
+    boolean remove (Connection conn, Object o)
     throws OSQLException {
         if (o==null)
             return false;
+        // Do not write it later on
+        boolean queued = writeBehind.cancel(o);
         Class c = o.getClass();
         ClassTable ct = getExistingClassTable(c);
         if (ct==null)
-            return false;
-        ObjectRecord r = ct.cache.get(o); 
-        if (r==null)
-            return false;
-        delete(conn, ct, r.id);
-        ct.cache.remove(r);
-        return true;
+            return queued;
+        RequestCache requestCache = requestCache();
+        requestCache.open();
+        try {
+        	requestCache.lock(ct);
+	        ObjectRecord r = requestCache.record(ct, o); 
+	        if (r==null)
+	            return queued;
+	        delete(conn, ct, r.id);
+	        requestCache.evict(ct, r);
+	        requestCache.commit();
+	        return true;
+        } catch (SQLException e) {
+            throw new OSQLException("Could not commit changes to database.", e);
+        } finally {
+        	requestCache.close();
+        }
     }
 
     
@@ -473,7 +772,7 @@ public final class Database {
      * @return
      * @throws OSQLException
      */
-    synchronized boolean removeAll (Connection conn, Class c)
+    boolean removeAll (Connection conn, Class c)
     throws OSQLException {
         // Null class?
         if (c==null)
@@ -483,18 +782,25 @@ public final class Database {
         ClassTable ct = getExistingClassTable(c);
         if (ct==null)
             return false;
+        flushBehind(ct);
         
         StringBuffer q = new StringBuffer("DELETE FROM \"");
 //        q.append(ObjectRecord.OSQL_TABLE_NAME);
         q.append("\" WHERE \"class\"=");
         q.append(ct.id);
         q.append("");
+        RequestCache requestCache = requestCache();
+        requestCache.open();
         try {
+        	requestCache.lock(ct);
             // Browse id list and DELETE corresponding records
-            statement.executeUpdate(q.toString());
+            requestCache.session.statement.executeUpdate(q.toString());
+            requestCache.commit();
             return true;
         } catch (SQLException e) {
             throw new OSQLException("Could not remove objects.\nQuery:  "+q.toString(), e);
+        } finally {
+        	requestCache.close();
         }
     }
     
@@ -509,7 +815,8 @@ public final class Database {
      * ongoing changes are rolled back if an error occurs). This garanties
      * stored data integrity.</li>
      * <li><i>thread safe</i>: this guaranties several concurrent threads can
-     * access the OSQL database seamlessly.
+     * access the OSQL database seamlessly. The class hierarchy is locked for
+     * writing until the operation completes.
      * </ul>
      * <p>
      * This method is only called by a {@link Connection} in order to serve a
@@ -523,7 +830,7 @@ public final class Database {
      * @throws OSQLException	thrown if any other error occurs during the
      * 							removal process
      */
-    synchronized int removeAll (Connection conn, Class c, String where)
+    int removeAll (Connection conn, Class c, String where)
     throws OSQLSyntaxError, OSQLException {
         // Null class?
         if (c==null)
@@ -532,6 +839,7 @@ public final class Database {
         // Unknow class? Nothing to remove
         if (ct==null)
             return 0;
+        flushBehind(ct);
 
         /*
          * Build query to retrieve objects selected for deletion
@@ -548,17 +856,20 @@ public final class Database {
         	ct.appendView(conn.user, q, null, null);
         
 //        System.out.println(q);
+        RequestCache requestCache = requestCache();
+        requestCache.open();
         try {
+        	requestCache.lock(ct);
             /*
              * Execute SELECT query and store PK values
              */
-            ResultSet rs = statement.executeQuery(q.toString());
+            ResultSet rs = query(q.toString());
             Vector v = new Vector();
             int i = 0;
             int d = 0;
             Integer oid;
             while (rs.next()) {
-                oid = new Integer(rs.getInt(ct.table.primaryKey));
+                oid = Integer.valueOf(rs.getInt(ct.table.primaryKey));
                 if (delete(conn, ct, oid))
                 	d++;
                 v.add(oid);
@@ -566,7 +877,7 @@ public final class Database {
             }
             if (logLevel==LOG_VERBOSE)
             	System.out.println(d+"/"+i+" record(s) deleted");
-            rs.close();
+            close(rs);
             /*
              * Remove objects from cache
              */
@@ -577,13 +888,26 @@ public final class Database {
                 r = ct.cache.getById(oid);
                 if (r==null)
                     continue;
-                ct.cache.remove(r);
+                requestCache.evict(ct, r);
             }
             // Commit changes to database and exit
-            connection.commit();
+            requestCache.commit();
             return n;
+        } catch (OSQLException e) {
+            try {
+            	// Rollback changes on error
+                requestCache.rollback();
+            } catch (SQLException se) {
+                throw new OSQLException("Could not rollback changes after error.", e);
+            }
+            throw e;
         } catch (SQLException e) {
+            try {
+                requestCache.rollback();
+            } catch (SQLException se) {}
             throw new OSQLException("Could not remove objects.\nSELECTion query:  "+q.toString(), e);
+        } finally {
+        	requestCache.close();
         }
     }
 
@@ -612,31 +936,54 @@ public final class Database {
         q.append("\"=");
         q.append(oid);
         try {
-            return statement.executeUpdate(q.toString())==1;
+        	RequestCache requestCache = requestCache();
+            return requestCache.session.statement.executeUpdate(q.toString())==1;
         } catch (SQLException e) {
             throw new OSQLException("Could not delete object #"+oid+" ("+ct.className+").", e);
         }
     }
     
     
-    synchronized Object get (Connection conn, Class c, String where, String order)
+    Object get (Connection conn, Class c, String where, String order)
+    throws OSQLException {
+    	return get(conn, c, where, order, null);
+    }
+    
+    
+    Object get (Connection conn, Class c, String where, String order, FetchPlan plan)
+    throws OSQLException {
+    	return get(conn, c, where, order, plan, null);
+    }
+    
+    
+    /**
+     * @param args	the values of the bind variables (<code>?</code>) of
+     * 				<code>where</code>, <code>null</code> if it has none
+     */
+    Object get (Connection conn, Class c, String where, String order, FetchPlan plan, Object[] args)
     throws OSQLException {
 //    	long ts = System.currentTimeMillis();
         if ((c==null))
             throw new OSQLException("Can't search for a null-class object.");       // Don't retrieve a null class object
+        RequestCache requestCache = requestCache();
+    	ClassTable t = getClassTable(c);
+    	flushBehind(t);
+    	StringBuffer f = null;
+    	StringBuffer j = null;
+    	if ((where!=null) && (!where.equals(""))) {
+    		f = new StringBuffer();
+    		j = new StringBuffer();
+    		where = parse(t, where, args, f, j);
+    	} else if (args!=null && args.length>0)
+    		throw new OSQLException("No bind variable in an empty WHERE clause for "+args.length+" value(s).");
+    	if (!t.table.autoIndex && (order!=null && order.matches(".*\"\\.id\".*")))
+    		order = null;
+    	ReentrantReadWriteLock.ReadLock lock = t.topClassTable.lock.readLock();
+    	requestCache.open();
+    	lock.lock();
         try {
-        	ClassTable t = getClassTable(c);
-        	StringBuffer f = null;
-        	StringBuffer j = null;
-        	if ((where!=null) && (!where.equals(""))) {
-        		f = new StringBuffer();
-        		j = new StringBuffer();
-        		where = parse(t, where, f, j);
-        	}
-        	if (!t.table.autoIndex && (order!=null && order.matches(".*\"\\.id\".*")))
-        		order = null;
         	// Retrieve specified object (if any)
-            Object o = select(conn, t, where, order, f, j);
+            Object o = select(conn, t, where, order, f, j, plan==null ? null : plan.compile(this, t), args);
             // Store processed objects in cache
             requestCache.cacheAll();
 //            ids.putAll(processedIds);
@@ -646,7 +993,8 @@ public final class Database {
             throw e;
         } finally {
             // Clear our temporary caches
-        	requestCache.clear();
+        	lock.unlock();
+        	requestCache.close();
         }
     }
     
@@ -654,7 +1002,7 @@ public final class Database {
     Object select (Connection conn, String type, int oid)
     throws OSQLException {
         try {
-            return select(conn, getClassTable(Class.forName(type)), "\".id\"="+oid, null, null, null);
+            return select(conn, getClassTable(Class.forName(type)), "\".id\"="+oid, null, null, null, null, null);
         } catch (ClassNotFoundException e) {
             throw new OSQLException("Class not found: "+type, e);
         }
@@ -668,32 +1016,141 @@ public final class Database {
     	where.append(ct.table.primaryKey);
     	where.append("\"=");
     	where.append(oid);
-        return select(conn, ct, where.toString(), null, null, null);
+        return select(conn, ct, where.toString(), null, null, null, null, null);
     }
     
     
-    private Object select (Connection conn, ClassTable t, String where, String order, StringBuffer f, StringBuffer j)
+    /**
+     * Returns the stored object of this class with this ID,
+     * <code>null</code> if none. Served by the object cache when it holds
+     * the object, without a query.
+     */
+    Object get (Connection conn, Class c, int oid)
     throws OSQLException {
-//        Table table = getTable(c);
-        // Build query
-//        StringBuffer q = new StringBuffer("SELECT TOP 1 * FROM (");
-        StringBuffer q = new StringBuffer("SELECT TOP 1 ");
-        t.appendView(conn.user, q, f, j);
-//        q.append(")");
-        if ((where!=null) && (!where.equals(""))) {
-            q.append(" WHERE ");
-            q.append(where);
+        if (c==null)
+            throw new OSQLException("Can't search for a null-class object.");
+        ClassTable t = getClassTable(c);
+        RequestCache requestCache = requestCache();
+        Object o = cached(requestCache, t, oid);
+        if (o!=null)
+        	return o;
+    	StringBuffer where = new StringBuffer("\"");
+    	where.append(t.table.primaryKey);
+    	where.append("\"=");
+    	where.append(oid);
+    	ReentrantReadWriteLock.ReadLock lock = t.topClassTable.lock.readLock();
+    	requestCache.open();
+    	lock.lock();
+        try {
+            o = select(conn, t, where.toString(), null, null, null, null, null);
+            requestCache.cacheAll();
+            return o;
+        } finally {
+        	lock.unlock();
+        	requestCache.close();
         }
-        if ((order!=null) && (!order.equals(""))) {
-            q.append(" ORDER BY ");
-            q.append(order);
+    }
+    
+    
+    /**
+     * Returns the stored objects of this class with these IDs, in the same
+     * order, leaving out IDs without object. Objects held by the object
+     * cache are served from it; the others are selected by a single
+     * <code>IN</code> query (per {@link #IN_LIST_SIZE} IDs).
+     */
+    List getAll (Connection conn, Class c, int[] oids)
+    throws OSQLException {
+        if (c==null)
+            throw new OSQLException("Can't search for a null-class object.");
+        ClassTable t = getClassTable(c);
+        RequestCache requestCache = requestCache();
+        Object[] found = new Object[oids.length];
+        int misses = 0;
+        for (int i=0; i<oids.length; i++)
+        	if ((found[i] = cached(requestCache, t, oids[i]))==null)
+        		misses++;
+        if (misses>0) {
+        	ReentrantReadWriteLock.ReadLock lock = t.topClassTable.lock.readLock();
+        	requestCache.open();
+        	lock.lock();
+        	try {
+        		HashMap<Integer,Object> selected = new HashMap<Integer,Object>();
+        		StringBuffer where = new StringBuffer();
+        		int n = 0;
+        		for (int i=0; i<oids.length; i++) {
+        			if (found[i]!=null)
+        				continue;
+        			if (n==0) {
+        				where.setLength(0);
+        				where.append("\"");
+        				where.append(t.table.primaryKey);
+        				where.append("\" IN (");
+        			} else
+        				where.append(',');
+        			where.append(oids[i]);
+        			misses--;
+        			if (++n==IN_LIST_SIZE || misses==0) {
+        				where.append(')');
+        				List l = selectAll(conn, t, where.toString(), null, null, null, null, 0, 0, null);
+        				requestCache.cacheAll();
+        				for (int k=0, m=l.size(); k<m; k++) {
+        					Object o = l.get(k);
+        					ObjectRecord r = requestCache.record(t, o);
+        					if (r!=null)
+        						selected.put(r.id, o);
+        				}
+        				n = 0;
+        			}
+        		}
+        		for (int i=0; i<oids.length; i++)
+        			if (found[i]==null)
+        				found[i] = selected.get(Integer.valueOf(oids[i]));
+        	} finally {
+        		lock.unlock();
+        		requestCache.close();
+        	}
         }
+        ArrayList list = new ArrayList(oids.length);
+        for (int i=0; i<found.length; i++)
+        	if (found[i]!=null)
+        		list.add(found[i]);
+        return list;
+    }
+    
+    
+    /**
+     * Returns the object of this class with this ID if the object cache
+     * holds it and serving it from there is safe: objects subject to access
+     * rights, deleted by the request in progress, or stale, must be
+     * selected.
+     */
+    private Object cached (RequestCache requestCache, ClassTable t, int oid) {
+    	if (t.hasAccessRights())
+    		return null;
+    	ObjectRecord r = t.cache.getById(oid);
+    	if (r==null)
+    		return null;
+    	Object o = r.object();
+    	// Cached for the hierarchy: may be of another class than t
+    	if (o==null || r.isStale() || !t.clazz.isInstance(o) || requestCache.removes(r))
+    		return null;
+    	return o;
+    }
+    
+    
+    private Object select (Connection conn, ClassTable t, String where, String order, StringBuffer f, StringBuffer j, FetchPlan.Joins fetch, Object[] args)
+    throws OSQLException {
+//        Table table = getTable(c);
+        // Build query
+        StringBuffer q = selectQuery(conn, t, where, order, f, j, fetch, 0, 1);
+        String sql = q.toString();
         ResultSet rs;
+        boolean found;
         try {
             // Execute query
             try {
 //            	long ts = System.currentTimeMillis();
-                rs = statement.executeQuery(q.toString());
+                rs = query(sql, args);
 //                System.out.println("Query: "+(System.currentTimeMillis()-ts));
             } catch (SQLException ee) {
 //                if(!ee.getMessage().startsWith("Table not found: "))
@@ -702,143 +1159,1155 @@ public final class Database {
 //                table.createView(conn);
 //                rs = statement.executeQuery(q.toString());
             }
-            rs.next();
+            found = rs.next();
         } catch (SQLException e) {
 //            e.printStackTrace();
             throw new OSQLException("Could not create SQL statement:\n"+q.toString(), e);
         }
         
+        RequestCache requestCache = requestCache();
+        boolean lead = requestCache.startResolving();
         try {
-            return t.restoreObject(conn, rs);
-        } catch (OSQLException e) {
-            throw e;//new OSQLException("Could not restore object.\nTable:  "+table.tableName+"\nWHERE:  "+where+(order==null ? "": "\nORDER:  "+order), e);
+        	Object o;
+	        try {
+	        	if (fetch!=null && found)
+	        		fetch.restore(conn, rs);
+	            o = t.restoreObject(conn, rs);
+	        } catch (OSQLException e) {
+	            throw e;//new OSQLException("Could not restore object.\nTable:  "+table.tableName+"\nWHERE:  "+where+(order==null ? "": "\nORDER:  "+order), e);
+	        } finally {
+	            // Attempt to close ResultSet
+	            try {
+	                close(rs, sql, args);
+	            } catch (SQLException e) {
+	                throw new OSQLException("Could not close SQL statement:\n"+rs.toString(), e);
+	            }
+	        }
+	        if (lead)
+	        	resolve(conn, requestCache);
+	        return o;
         } finally {
-            // Attempt to close ResultSet
-            try {
-                rs.close();
-            } catch (SQLException e) {
-                throw new OSQLException("Could not close SQL statement:\n"+rs.toString(), e);
-            }
+        	if (lead)
+        		requestCache.endResolving();
         }
     }
 
 
-    synchronized List getAll (Connection conn, Class c, String where, String order)
+    List getAll (Connection conn, Class c, String where, String order)
     throws OSQLException {
-        if (c==null)
-            return null;        // Don't retrieve a null class object
-        try {
-        	ClassTable t = getClassTable(c);
-        	StringBuffer f = null;
-        	StringBuffer j = null;
-        	if ((where!=null) && (!where.equals(""))) {
-        		f = new StringBuffer();
-        		j = new StringBuffer();
-        		where = parse(t, where, f, j);
-        	}
-            List l = selectAll(conn, t, where, order, f, j);
-            requestCache.cacheAll();
-//            ids.putAll(processedIds);
-            return l;
-        } catch (OSQLException e) {
-            throw e;
-        } finally {
-        	requestCache.clear();
-        }
+    	return getAll(conn, c, where, order, null);
     }
     
     
-    private List selectAll (Connection conn, ClassTable t, String where, String order, StringBuffer f, StringBuffer j)
+    List getAll (Connection conn, Class c, String where, String order, FetchPlan plan)
     throws OSQLException {
-//        Table table = getTable(c);
-        // Build query
-        StringBuffer q = new StringBuffer("SELECT");
-        t.appendView(conn.user, q, f, j);
-//        q.append(")");
-        if ((where!=null) && (!where.equals(""))) {
-            q.append(" WHERE ");
-            q.append(where);
-        }
-        if ((order!=null) && (!order.equals(""))) {
-            q.append(" ORDER BY ");
-            q.append(order);
-        }
-        ResultSet rs;
-        try {
-            // Execute query
-            rs = statement.executeQuery(q.toString());
-        } catch (SQLException e) {
-            throw new OSQLException("Could not create SQL statement:\n"+q.toString(), e);
-        }
-        
-        try {
-            ArrayList list = new ArrayList();
-//            Integer oid; String className; Object o;
-            while (rs.next())
-                list.add(t.restoreObject(conn, rs));
-            return list;
-        } catch (SQLException e) {
-            throw new OSQLException("SQL exception during transaction:\n"+q.toString(), e);
-        } catch (OSQLException e) {
-            throw new OSQLException("SQL exception during transaction:\n"+q.toString(), e);
-        } finally {
-            // Attempt to close ResultSet
-            try {
-                rs.close();
-            } catch (SQLException e) {
-                throw new OSQLException("Could not close SQL statement:\n"+rs.toString(), e);
-            }
-        }
+    	return getAll(conn, c, where, null, order, plan, 0, 0);
     }
     
     
     /**
-     * Returns the number of stored objects of this <code>Class</code> that
-     * fulfill this <code>where</code> clause.
+     * Returns a page of the objects of this class matching
+     * <code>where</code>: at most <code>limit</code> of them (all if
+     * <code>0</code>), skipping the first <code>offset</code> ones.
+     */
+    List getAll (Connection conn, Class c, String where, String order, int offset, int limit)
+    throws OSQLException {
+    	return getAll(conn, c, where, null, order, null, offset, limit);
+    }
+    
+    
+    /**
+     * Returns the page of at most <code>limit</code> objects of this class
+     * matching <code>where</code> that follows object <code>last</code> (the
+     * first page if <code>null</code>), in the order of field
+     * <code>key</code>. Objects with equal keys are ordered by ID.
+     * <p>
+     * Unlike an offset, the position of <code>last</code> is sought by the
+     * database, through the index of the key if any: pages are read in the
+     * same time wherever they are.
      * 
-     * @param conn
-     * @param c
-     * @param where
-     * @return
-     * @throws OSQLException
+     * @param key	a field name, or <code>".id"</code>, possibly quoted and
+     * 				followed by <code>ASC</code> or <code>DESC</code>
+     * @throws OSQLException	thrown if <code>last</code> is not cached
+     * 							anymore: page from its key value and ID then
      */
-    synchronized int count (Connection conn, Class c, String where)
+    List getAfter (Connection conn, Class c, String where, String key, Object last, int limit)
     throws OSQLException {
-    	if (c==null)
-    		return 0;
-        ClassTable ct = getExistingClassTable(c);
-        // Unknown class? Zero object stored
-        if (ct==null)
-        	return 0;
-        /*
-         * Build query
-         */ 
-        StringBuffer q = new StringBuffer("SELECT COUNT(*) FROM (SELECT");
-    	StringBuffer f = null;
-    	StringBuffer j = null;
-    	boolean w = false;
-        if ((where!=null) && (!where.equals(""))) {
-    		w = true;
-    		f = new StringBuffer();
-    		j = new StringBuffer();
-    		where = parse(ct, where, f, j);
+    	if (last==null)
+    		return getAfter(conn, c, where, key, false, null, 0, limit);
+        if (c==null)
+            return null;        // Don't retrieve a null class object
+    	if (!c.isInstance(last))
+    		throw new OSQLException("Not a "+c.getName()+" object: "+last);
+    	ClassTable lt = getClassTableFromCache(last.getClass());
+    	ObjectRecord r = lt==null ? null : lt.cache.get(last);
+    	if (r==null)
+    		throw new OSQLException("Unknown object: "+last);
+    	FieldColumn col = pagingColumn(getClassTable(c), key);
+    	Object v = null;
+    	try {
+    		if (col!=null)
+    			v = col.accessor.get(last);
+    	} catch (IllegalAccessException e) {
+    		throw new OSQLException("Could not read field '"+col.field.getName()+"' of object "+last, e);
+    	}
+    	return getAfter(conn, c, where, key, true, v, r.id, limit);
+    }
+    
+    
+    /**
+     * Returns the page of at most <code>limit</code> objects of this class
+     * matching <code>where</code> that follows the object of this key value
+     * and ID, in the order of field <code>key</code>. The object itself need
+     * not be known, nor even still be stored.
+     * 
+     * @param lastKey	the value of field <code>key</code> of the last object
+     * 					of the previous page, ignored when paging on IDs
+     * @param lastId	the ID of that object
+     */
+    List getAfter (Connection conn, Class c, String where, String key, Object lastKey, int lastId, int limit)
+    throws OSQLException {
+    	return getAfter(conn, c, where, key, true, lastKey, lastId, limit);
+    }
+    
+    
+    private List getAfter (Connection conn, Class c, String where, String key, boolean after, Object lastKey, int lastId, int limit)
+    throws OSQLException {
+        if (c==null)
+            return null;        // Don't retrieve a null class object
+    	if (limit<1)
+    		throw new OSQLException("Invalid limit: "+limit);
+    	ClassTable t = getClassTable(c);
+    	if (t.table.primaryKey==null)
+    		throw new OSQLException("Cannot page "+t.className+" objects: they have no primary key.");
+    	FieldColumn col = pagingColumn(t, key);
+    	boolean desc = key!=null && key.trim().toUpperCase().endsWith(" DESC");
+    	String id = "\""+t.table.primaryKey+"\"";
+    	String dir = desc ? " DESC" : "";
+    	String order = col==null ? id+dir : "\""+col.field.getName()+"\""+dir+", "+id+dir;
+    	String seek = null;
+    	ArrayList args = null;
+    	if (after) {
+    		args = new ArrayList();
+    		seek = seek(t, col, lastKey, lastId, desc, args);
+    	}
+    	return getAll(conn, c, where, seek, args==null ? null : args.toArray(), order, null, 0, limit, null);
+    }
+    
+    
+    /**
+     * Returns the column of the field objects are paged on, <code>null</code>
+     * for their ID.
+     * 
+     * @param key	a field name, or <code>".id"</code>, possibly quoted and
+     * 				followed by <code>ASC</code> or <code>DESC</code>
+     */
+    private static FieldColumn pagingColumn (ClassTable t, String key)
+    throws OSQLException {
+    	String name = key==null ? "" : key.trim();
+    	if (name.toUpperCase().endsWith(" DESC"))
+    		name = name.substring(0, name.length()-5).trim();
+    	else if (name.toUpperCase().endsWith(" ASC"))
+    		name = name.substring(0, name.length()-4).trim();
+    	if (name.length()>1 && name.startsWith("\"") && name.endsWith("\""))
+    		name = name.substring(1, name.length()-1);
+    	// Paging on the ID needs no other key
+    	if (name.equals(".id") || name.equals(t.table.primaryKey))
+    		return null;
+    	FieldColumn col = t.column(name);
+    	if (col==null || col instanceof FieldColumn._Object)
+    		throw new OSQLException("Not a field of class "+t.className+" to page on: '"+name+"'");
+    	return col;
+    }
+    
+    
+    /**
+     * Returns the SQL condition selecting the objects which follow the one
+     * of this key value and ID in the order of this column, then of IDs.
+     * <code>NULL</code> keys come first in ascending order, last in
+     * descending order. The values to bind to the condition are added to
+     * <code>args</code>.
+     */
+    private static String seek (ClassTable t, FieldColumn col, Object v, int id, boolean desc, List args)
+    throws OSQLException {
+    	String after = "\""+t.table.primaryKey+(desc ? "\"<?" : "\">?");
+    	if (col==null) {
+    		args.add(Integer.valueOf(id));
+    		return after;
+    	}
+    	String k = "\""+col.field.getName()+"\"";
+    	if (v==null) {
+    		args.add(Integer.valueOf(id));
+    		return desc ? "("+k+" IS NULL AND "+after+")" : "("+k+" IS NOT NULL OR "+after+")";
+    	}
+    	if (!(v instanceof String || v instanceof Character || v instanceof Boolean
+    			|| v instanceof java.util.Date || v instanceof Number))
+    		throw new OSQLException("Cannot page on values of type "+v.getClass().getName());
+    	if ((v instanceof Double && (((Double)v).isNaN() || ((Double)v).isInfinite()))
+    			|| (v instanceof Float && (((Float)v).isNaN() || ((Float)v).isInfinite())))
+    		throw new OSQLException("Cannot page from value "+v);
+    	args.add(v);
+    	args.add(v);
+    	args.add(Integer.valueOf(id));
+    	StringBuffer s = new StringBuffer("(");
+    	s.append(k);
+    	s.append(desc ? "<?" : ">?");
+    	s.append(" OR (");
+    	s.append(k);
+    	s.append("=? AND ");
+    	s.append(after);
+    	s.append(")");
+    	if (desc) {
+    		s.append(" OR ");
+    		s.append(k);
+    		s.append(" IS NULL");
+    	}
+    	s.append(")");
+    	return s.toString();
+    }
+    
+    
+    /**
+     * @param seek		an SQL condition added to the parsed
+     * 					<code>where</code> clause, <code>null</code> if none
+     * @param offset	the number of objects to skip
+     * @param limit		the maximum number of objects, <code>0</code> for no
+     * 					limit
+     */
+    private List getAll (Connection conn, Class c, String where, String seek, String order, FetchPlan plan, int offset, int limit)
+    throws OSQLException {
+    	return getAll(conn, c, where, seek, null, order, plan, offset, limit, null);
+    }
+    
+    
+    /**
+     * @param args	the values of the bind variables (<code>?</code>) of
+     * 				<code>where</code>, <code>null</code> if it has none
+     */
+    List getAll (Connection conn, Class c, String where, String seek, String order, FetchPlan plan, int offset, int limit, Object[] args)
+    throws OSQLException {
+    	return getAll(conn, c, where, seek, null, order, plan, offset, limit, args);
+    }
+    
+    
+    /**
+     * @param seekArgs	the values of the bind variables of <code>seek</code>,
+     * 					bound after those of <code>where</code>
+     */
+    private List getAll (Connection conn, Class c, String where, String seek, Object[] seekArgs, String order, FetchPlan plan, int offset, int limit, Object[] args)
+    throws OSQLException {
+        if (c==null)
+            return null;        // Don't retrieve a null class object
+    	if (offset<0)
+    		throw new OSQLException("Invalid offset: "+offset);
+    	if (limit<0)
+    		throw new OSQLException("Invalid limit: "+limit);
+        RequestCache requestCache = requestCache();
+    	ClassTable t = getClassTable(c);
+    	flushBehind(t);
+    	StringBuffer f = null;
+    	StringBuffer j = null;
+    	if ((where!=null) && (!where.equals(""))) {
+    		f = new StringBuffer();
+    		j = new StringBuffer();
+    		where = parse(t, where, args, f, j);
+    		if (seek!=null)
+    			where = "("+where+") AND "+seek;
+    	} else if (args!=null && args.length>0)
+    		throw new OSQLException("No bind variable in an empty WHERE clause for "+args.length+" value(s).");
+    	else
+    		where = seek;
+    	if (seekArgs!=null && seekArgs.length>0) {
+    		if (args==null)
+    			args = seekArgs;
+    		else {
+    			Object[] a = new Object[args.length+seekArgs.length];
+    			System.arraycopy(args, 0, a, 0, args.length);
+    			System.arraycopy(seekArgs, 0, a, args.length, seekArgs.length);
+    			args = a;
+    		}
+    	}
+    	ReentrantReadWriteLock.ReadLock lock = t.topClassTable.lock.readLock();
+    	requestCache.open();
+    	lock.lock();
+        try {
+            List l = selectAll(conn, t, where, order, f, j, plan==null ? null : plan.compile(this, t), offset, limit, args);
+            requestCache.cacheAll();
+//            ids.putAll(processedIds);
+            return l;
+        } catch (OSQLException e) {
+            throw e;
+        } finally {
+        	lock.unlock();
+        	requestCache.close();
+        }
+    }
+    
+    
+    private List selectAll (Connection conn, ClassTable t, String where, String order, StringBuffer f, StringBuffer j, FetchPlan.Joins fetch, int offset, int limit, Object[] args)
+    throws OSQLException {
+//        Table table = getTable(c);
+        // Build query
+        // With bind variables, all pages share the SQL of their query
+        boolean paged = args!=null && (offset>0 || limit>0);
+        StringBuffer q = selectQuery(conn, t, where, order, f, j, fetch, paged ? -1 : offset, limit);
+        String sql = q.toString();
+        if (paged) {
+        	Object[] a = new Object[args.length+2];
+        	a[0] = Integer.valueOf(offset);
+        	a[1] = Integer.valueOf(limit);
+        	System.arraycopy(args, 0, a, 2, args.length);
+        	args = a;
+        }
+        ResultSet rs;
+        try {
+            // Execute query
+            rs = query(sql, args);
+        } catch (SQLException e) {
+            throw new OSQLException("Could not create SQL statement:\n"+q.toString(), e);
+        }
+        
+        RequestCache requestCache = requestCache();
+        boolean lead = requestCache.startResolving();
+        try {
+            ArrayList list = new ArrayList();
+	        try {
+	        	restoreRows(conn, t, rs, fetch, list, -1);
+	        } catch (SQLException e) {
+	            throw new OSQLException("SQL exception during transaction:\n"+q.toString(), e);
+	        } catch (OSQLException e) {
+	            throw new OSQLException("SQL exception during transaction:\n"+q.toString(), e);
+	        } finally {
+	            // Attempt to close ResultSet
+	            try {
+	                close(rs, sql, args);
+	            } catch (SQLException e) {
+	                throw new OSQLException("Could not close SQL statement:\n"+rs.toString(), e);
+	            }
+	        }
+	        if (lead)
+	        	resolve(conn, requestCache);
+	        return list;
+        } finally {
+        	if (lead)
+        		requestCache.endResolving();
+        }
+    }
+    
+    
+    /**
+     * Returns the values of these field paths for the objects of this class
+     * matching <code>where</code>, one row per object, without restoring
+     * objects.
+     * 
+     * @param row	the class of rows, built through its constructor taking
+     * 				one argument per path (such as that of a record), of a
+     * 				type the column of the path converts to;
+     * 				<code>null</code> for <code>Object[]</code> rows
+     */
+    List project (Connection conn, Class c, Class row, String[] paths, String where, String order)
+    throws OSQLException {
+    	ClassTable t = getClassTable(c);
+    	flushBehind(t);
+    	String q = projection(conn, t, paths, where, order);
+        RequestCache requestCache = requestCache();
+    	ReentrantReadWriteLock.ReadLock lock = t.topClassTable.lock.readLock();
+    	requestCache.open();
+    	lock.lock();
+        try {
+            ResultSet rs = query(q);
+            try {
+            	ArrayList list = new ArrayList();
+            	Constructor cons = row==null ? null : constructor(row, rs.getMetaData());
+            	Class[] types = cons==null ? null : cons.getParameterTypes();
+            	Object[] values;
+	            while (rs.next()) {
+	            	values = new Object[paths.length];
+	            	for (int i=0; i<values.length; i++)
+	            		values[i] = types==null ? rs.getObject(i+1) : convert(rs.getObject(i+1), types[i]);
+	            	list.add(cons==null ? values : cons.newInstance(values));
+	            }
+	            return list;
+            } finally {
+            	close(rs);
+            }
+        } catch (SQLException e) {
+            throw new OSQLException("Could not run projection query:\n"+q, e);
+        } catch (InstantiationException e) {
+        	throw new OSQLException("Could not create "+row.getName()+" rows.", e);
+        } catch (IllegalAccessException e) {
+        	throw new OSQLException("Could not create "+row.getName()+" rows.", e);
+        } catch (InvocationTargetException e) {
+        	throw new OSQLException("Could not create "+row.getName()+" rows.", e.getCause());
+        } finally {
+        	lock.unlock();
+        	requestCache.close();
+        }
+    }
+    
+    
+    /**
+     * Returns the values of this field path for the objects of this class
+     * matching <code>where</code>, as an array of this primitive type
+     * (<code>int</code>, <code>long</code> or <code>double</code>).
+     * <code>NULL</code> values are read as <code>0</code>.
+     */
+    Object projectArray (Connection conn, Class c, Class type, String path, String where, String order)
+    throws OSQLException {
+    	if (type!=int.class && type!=long.class && type!=double.class)
+    		throw new OSQLException("Unsupported array type: "+type);
+    	ClassTable t = getClassTable(c);
+    	flushBehind(t);
+    	String q = projection(conn, t, new String[] {path}, where, order);
+        RequestCache requestCache = requestCache();
+    	ReentrantReadWriteLock.ReadLock lock = t.topClassTable.lock.readLock();
+    	requestCache.open();
+    	lock.lock();
+        try {
+            ResultSet rs = query(q);
+            try {
+            	int[] ints = type==int.class ? new int[16] : null;
+            	long[] longs = type==long.class ? new long[16] : null;
+            	double[] doubles = type==double.class ? new double[16] : null;
+            	int n = 0;
+	            while (rs.next()) {
+	            	if (ints!=null) {
+	            		if (n==ints.length)
+	            			ints = Arrays.copyOf(ints, n*2);
+	            		ints[n++] = rs.getInt(1);
+	            	} else if (longs!=null) {
+	            		if (n==longs.length)
+	            			longs = Arrays.copyOf(longs, n*2);
+	            		longs[n++] = rs.getLong(1);
+	            	} else {
+	            		if (n==doubles.length)
+	            			doubles = Arrays.copyOf(doubles, n*2);
+	            		doubles[n++] = rs.getDouble(1);
+	            	}
+	            }
+            	if (ints!=null)
+            		return Arrays.copyOf(ints, n);
+            	if (longs!=null)
+            		return Arrays.copyOf(longs, n);
+            	return Arrays.copyOf(doubles, n);
+            } finally {
+            	close(rs);
+            }
+        } catch (SQLException e) {
+            throw new OSQLException("Could not run projection query:\n"+q, e);
+        } finally {
+        	lock.unlock();
+        	requestCache.close();
         }
-        ct.appendView(conn.user, q, null, null);
-        q.append(")");
-        if (w) {
+    }
+    
+    
+    /**
+     * Builds the query of a projection: only the columns of these paths
+     * are selected, from the view of this class.
+     */
+    private String projection (Connection conn, ClassTable t, String[] paths, String where, String order)
+    throws OSQLException {
+    	if (paths==null || paths.length==0)
+    		throw new OSQLException("No field to select.");
+    	// Columns and joins of the view, for the WHERE clause and paths
+    	StringBuffer f = new StringBuffer();
+    	StringBuffer j = new StringBuffer();
+    	if ((where!=null) && (!where.equals("")))
+    		where = parse(t, where, f, j);
+    	StringBuffer q = new StringBuffer("SELECT ");
+    	for (int i=0; i<paths.length; i++) {
+    		if (i>0)
+    			q.append(", ");
+    		q.append(parsePath(t, paths[i], f, j));
+    	}
+    	// Labels (e.g. "super.name") are those of the view
+    	q.append(" FROM (SELECT");
+    	t.appendView(conn.user, q, f, j);
+    	q.append(")");
+        if ((where!=null) && (!where.equals(""))) {
             q.append(" WHERE ");
             q.append(where);
         }
-        /*
-         * Execute query
-         */
-        ResultSet rs;
+        if ((order!=null) && (!order.equals(""))) {
+            q.append(" ORDER BY ");
+            q.append(order);
+        }
+        return q.toString();
+    }
+    
+    
+    /**
+     * Computes these aggregate expressions over the objects of this class
+     * matching <code>where</code>, per group of objects with the same
+     * values of the <code>groupBy</code> field paths (over all of them if
+     * none), in the database.
+     * 
+     * @param expressions	<code>COUNT(*)</code>, or <code>COUNT</code>,
+     * 						<code>SUM</code>, <code>MIN</code>,
+     * 						<code>MAX</code> or <code>AVG</code> of a field
+     * 						path, optionally <code>DISTINCT</code>
+     */
+    Aggregate aggregate (Connection conn, Class c, String where, String[] expressions, String[] groupBy)
+    throws OSQLException {
+    	if (expressions==null || expressions.length==0)
+    		throw new OSQLException("No aggregate expression.");
+    	if (groupBy==null)
+    		groupBy = new String[0];
+    	ClassTable t = getClassTable(c);
+    	flushBehind(t);
+    	// Columns and joins of the view, for the WHERE clause and paths
+    	StringBuffer f = new StringBuffer();
+    	StringBuffer j = new StringBuffer();
+    	if ((where!=null) && (!where.equals("")))
+    		where = parse(t, where, f, j);
+    	StringBuffer g = new StringBuffer();
+    	for (int k=0; k<groupBy.length; k++) {
+    		if (k>0)
+    			g.append(", ");
+    		g.append(parsePath(t, groupBy[k], f, j));
+    	}
+    	StringBuffer q = new StringBuffer("SELECT ");
+    	q.append(g);
+    	Matcher m;
+    	String fn;
+    	for (int i=0; i<expressions.length; i++) {
+    		m = AGGREGATE.matcher(expressions[i]==null ? "" : expressions[i]);
+    		if (!m.matches())
+    			throw new OSQLSyntaxError("Invalid aggregate expression: '"+expressions[i]+"'");
+    		if (i>0 || groupBy.length>0)
+    			q.append(", ");
+    		fn = m.group(1).toUpperCase();
+    		if (m.group(3).equals("*")) {
+    			if (!fn.equals("COUNT") || m.group(2)!=null)
+        			throw new OSQLSyntaxError("Invalid aggregate expression: '"+expressions[i]+"'");
+    			q.append("COUNT(*)");
+    			continue;
+    		}
+    		q.append(fn);
+    		q.append('(');
+    		if (m.group(2)!=null)
+    			q.append("DISTINCT ");
+    		// Averages of integral fields would be truncated
+    		if (fn.equals("AVG"))
+    			q.append("CAST(");
+    		q.append(parsePath(t, m.group(3), f, j));
+    		if (fn.equals("AVG"))
+    			q.append(" AS DOUBLE)");
+    		q.append(')');
+    	}
+    	q.append(" FROM (SELECT");
+    	t.appendView(conn.user, q, f, j);
+    	q.append(")");
+        if ((where!=null) && (!where.equals(""))) {
+            q.append(" WHERE ");
+            q.append(where);
+        }
+        if (groupBy.length>0) {
+        	q.append(" GROUP BY ");
+        	q.append(g);
+        	q.append(" ORDER BY ");
+        	q.append(g);
+        }
+        RequestCache requestCache = requestCache();
+    	ReentrantReadWriteLock.ReadLock lock = t.topClassTable.lock.readLock();
+    	requestCache.open();
+    	lock.lock();
         try {
-        	rs = statement.executeQuery(q.toString());
+            ResultSet rs = query(q.toString());
+            try {
+            	return new Aggregate(groupBy, expressions, rs);
+            } finally {
+            	close(rs);
+            }
+        } catch (SQLException e) {
+            throw new OSQLException("Could not run aggregate query:\n"+q, e);
+        } finally {
+        	lock.unlock();
+        	requestCache.close();
+        }
+    }
+    
+    
+    /**
+     * Returns the constructor of this row class whose parameters take the
+     * columns of this result set, preferring one taking them as they are
+     * to one needing conversions.
+     * 
+     * @throws OSQLException	thrown if none does, or if several equally do
+     */
+    private static Constructor constructor (Class row, ResultSetMetaData md)
+    throws SQLException, OSQLException {
+    	Class[] columns = new Class[md.getColumnCount()];
+    	StringBuffer s = new StringBuffer("(");
+    	for (int i=0; i<columns.length; i++) {
+    		try {
+    			columns[i] = Class.forName(md.getColumnClassName(i+1));
+    		} catch (ClassNotFoundException e) {
+    			columns[i] = Object.class;
+    		}
+    		if (i>0)
+    			s.append(", ");
+    		s.append(columns[i].getName());
+    	}
+    	s.append(")");
+    	Constructor[] cs = row.getDeclaredConstructors();
+    	Constructor cons = null;
+    	int best = 0;
+    	boolean ambiguous = false;
+    	Class[] types;
+    	int rank;
+    	for (int i=0; i<cs.length; i++) {
+    		types = cs[i].getParameterTypes();
+    		if (types.length!=columns.length)
+    			continue;
+    		rank = 2;
+    		for (int k=0; k<types.length && rank>0; k++)
+    			rank = Math.min(rank, compatibility(types[k], columns[k]));
+    		if (rank==0 || rank<best)
+    			continue;
+    		ambiguous = rank==best;
+    		cons = cs[i];
+    		best = rank;
+    	}
+    	if (cons==null)
+    		throw new OSQLException("No constructor of "+row.getName()+" takes "+s);
+    	if (ambiguous)
+    		throw new OSQLException("Several constructors of "+row.getName()+" take "+s);
+    	cons.setAccessible(true);
+    	return cons;
+    }
+    
+    
+    /**
+     * Returns how well a constructor parameter of this type takes values of
+     * this column class: <code>2</code> as they are, <code>1</code> through
+     * {@link #convert(Object, Class)}, <code>0</code> not at all.
+     */
+    private static int compatibility (Class type, Class column) {
+    	if (type==int.class)
+    		type = Integer.class;
+    	else if (type==long.class)
+    		type = Long.class;
+    	else if (type==double.class)
+    		type = Double.class;
+    	else if (type==float.class)
+    		type = Float.class;
+    	else if (type==short.class)
+    		type = Short.class;
+    	else if (type==byte.class)
+    		type = Byte.class;
+    	else if (type==boolean.class)
+    		type = Boolean.class;
+    	else if (type==char.class)
+    		type = Character.class;
+    	if (type.isAssignableFrom(column))
+    		return 2;
+    	// Unknown column class: leave it to conversion
+    	if (column==Object.class)
+    		return 1;
+    	if (Number.class.isAssignableFrom(column) && (type==Integer.class || type==Long.class || type==Double.class
+    			|| type==Float.class || type==Short.class || type==Byte.class))
+    		return 1;
+    	if (type==Character.class && column==String.class)
+    		return 1;
+    	return 0;
+    }
+    
+    
+    /**
+     * Converts this column value to a constructor parameter type.
+     */
+    private static Object convert (Object v, Class type)
+    throws OSQLException {
+    	if (v==null) {
+    		if (type.isPrimitive())
+    			throw new OSQLException("NULL value for a "+type.getName()+" argument.");
+    		return null;
+    	}
+    	if (type.isInstance(v))
+    		return v;
+    	if (v instanceof Number) {
+    		Number n = (Number)v;
+    		if (type==int.class || type==Integer.class)
+    			return Integer.valueOf(n.intValue());
+    		if (type==long.class || type==Long.class)
+    			return Long.valueOf(n.longValue());
+    		if (type==double.class || type==Double.class)
+    			return Double.valueOf(n.doubleValue());
+    		if (type==float.class || type==Float.class)
+    			return Float.valueOf(n.floatValue());
+    		if (type==short.class || type==Short.class)
+    			return Short.valueOf(n.shortValue());
+    		if (type==byte.class || type==Byte.class)
+    			return Byte.valueOf(n.byteValue());
+    	}
+    	if ((type==boolean.class && v instanceof Boolean) || (type==char.class && v instanceof Character))
+    		return v;
+    	if ((type==char.class || type==Character.class) && v instanceof String && ((String)v).length()==1)
+    		return Character.valueOf(((String)v).charAt(0));
+    	throw new OSQLException("Cannot pass a "+v.getClass().getName()+" value as a "+type.getName()+" argument.");
+    }
+    
+    
+    /**
+     * Opens a cursor over the objects of this class matching
+     * <code>where</code>, restored <code>fetchSize</code> at a time.
+     */
+    Cursor stream (Connection conn, Class c, String where, String order, int fetchSize)
+    throws OSQLException {
+        if (c==null)
+            throw new OSQLException("Can't search for a null-class object.");
+        if (fetchSize<1)
+        	throw new OSQLException("Invalid fetch size: "+fetchSize);
+        RequestCache requestCache = requestCache();
+    	ClassTable t = getClassTable(c);
+    	flushBehind(t);
+    	StringBuffer f = null;
+    	StringBuffer j = null;
+    	if ((where!=null) && (!where.equals(""))) {
+    		f = new StringBuffer();
+    		j = new StringBuffer();
+    		where = parse(t, where, f, j);
+    	}
+        StringBuffer q = null;
+    	ReentrantReadWriteLock.ReadLock lock = t.topClassTable.lock.readLock();
+    	requestCache.open();
+    	lock.lock();
+    	boolean open = false;
+        try {
+        	q = selectQuery(conn, t, where, order, f, j, null, 0, 0);
+            Cursor cursor = new Cursor(this, conn, t, query(q.toString(), fetchSize), lock, fetchSize);
+            open = true;
+            return cursor;
         } catch (SQLException e) {
             throw new OSQLException("Could not create SQL statement:\n"+q.toString(), e);
+        } finally {
+        	// Otherwise released by the cursor
+        	if (!open) {
+        		lock.unlock();
+        		requestCache.close();
+        	}
         }
+    }
+    
+    
+    /**
+     * Restores the next objects of a cursor, at most <code>max</code> of
+     * them, then caches and forgets them so that the request does not grow
+     * with the cursor.
+     * 
+     * @return	<code>true</code> if all rows have been read
+     */
+    boolean restoreNext (Connection conn, ClassTable t, ResultSet rs, ArrayList list, int max)
+    throws OSQLException {
+        RequestCache requestCache = requestCache();
+        boolean lead = requestCache.startResolving();
+        boolean done;
         try {
+	        try {
+	        	done = restoreRows(conn, t, rs, null, list, max);
+	        } catch (SQLException e) {
+	            throw new OSQLException("Could not read "+t.className+" objects from cursor.", e);
+	        }
+	        if (lead)
+	        	resolve(conn, requestCache);
+        } finally {
+        	if (lead)
+        		requestCache.endResolving();
+        }
+        requestCache.release();
+        return done;
+    }
+    
+    
+    /**
+     * Restores objects from the following rows of this result set into
+     * <code>list</code>, at most <code>max</code> of them unless negative.
+     * Objects of subclass rows are selected afterwards, in bulk; references
+     * are left to the two-phase restoration in progress.
+     * 
+     * @return	<code>true</code> if all rows have been read
+     */
+    boolean restoreRows (Connection conn, ClassTable t, ResultSet rs, FetchPlan.Joins fetch, ArrayList list, int max)
+    throws SQLException, OSQLException {
+        // Rows of subclass objects, by subclass name
+        HashMap<String,ArrayList<Integer>> subclassRows = null;
+    	Object o;
+    	ClassTable.SubclassRow row;
+    	ArrayList<Integer> rows;
+    	boolean more = true;
+    	for (int n=0; (max<0 || n<max) && (more = rs.next()); n++) {
+        	if (fetch!=null)
+        		fetch.restore(conn, rs);
+            o = t.restoreObject(conn, rs, true);
+            if (o instanceof ClassTable.SubclassRow) {
+            	row = (ClassTable.SubclassRow)o;
+            	if (subclassRows==null)
+            		subclassRows = new HashMap<String,ArrayList<Integer>>();
+            	rows = subclassRows.get(row.name);
+            	if (rows==null) {
+            		rows = new ArrayList<Integer>();
+            		subclassRows.put(row.name, rows);
+            	}
+            	rows.add(Integer.valueOf(list.size()));
+            	o = row.oid;
+            }
+            list.add(o);
+        }
+        if (subclassRows!=null)
+        	selectSubclassRows(conn, list, subclassRows);
+        return !more;
+    }
+    
+    
+    /**
+     * Builds the SELECT query of the objects of this class, returning at
+     * most <code>limit</code> rows (all if <code>0</code>) after the first
+     * <code>offset</code> ones. A negative <code>offset</code> makes both
+     * bind variables, the first two of the query.
+     */
+    private StringBuffer selectQuery (Connection conn, ClassTable t, String where, String order, StringBuffer f, StringBuffer j, FetchPlan.Joins fetch, int offset, int limit) {
+        StringBuffer q = new StringBuffer("SELECT");
+        if (offset<0)
+        	q.append(" LIMIT ? ?");
+        else if (offset>0 || limit>0) {
+        	// HSQLDB: a limit of 0 returns all rows
+        	q.append(" LIMIT ");
+        	q.append(offset);
+        	q.append(' ');
+        	q.append(limit);
+        }
+        appendView(conn, t, q, f, j, fetch);
+        if ((where!=null) && (!where.equals(""))) {
+            q.append(" WHERE ");
+            q.append(where);
+        }
+        if ((order!=null) && (!order.equals(""))) {
+            q.append(" ORDER BY ");
+            q.append(order);
+        }
+        return q;
+    }
+    
+    
+    /**
+     * Appends the view of this class to query <code>q</code>, with the
+     * columns and joins of a <code>WHERE</code> clause and of a fetch plan,
+     * if any.
+     */
+    private void appendView (Connection conn, ClassTable t, StringBuffer q, StringBuffer f, StringBuffer j, FetchPlan.Joins fetch) {
+    	if (fetch==null) {
+    		t.appendView(conn.user, q, f, j);
+    		return;
+    	}
+    	// Fetch plan columns come first, right after those of the view
+    	StringBuffer fields = new StringBuffer(fetch.fields);
+    	if (f!=null)
+    		fields.append(f);
+    	t.appendView(conn.user, q, fields, j);
+    	q.append(fetch.joins);
+    }
+    
+    
+    /**
+     * Replaces the IDs of subclass objects in this list with the objects,
+     * selected with one query per subclass. Objects removed meanwhile are
+     * dropped from the list.
+     * 
+     * @param rows	indexes of subclass objects in the list, by subclass
+     */
+    private void selectSubclassRows (Connection conn, ArrayList list, HashMap<String,ArrayList<Integer>> rows)
+    throws OSQLException {
+    	Iterator<String> i = rows.keySet().iterator();
+    	String name; ArrayList<Integer> indexes; HashMap<Integer,Object> found;
+    	ArrayList<Integer> ids;
+    	boolean missing = false;
+    	while (i.hasNext()) {
+    		name = i.next();
+    		indexes = rows.get(name);
+    		ids = new ArrayList<Integer>(indexes.size());
+    		for (int k=0; k<indexes.size(); k++)
+    			ids.add((Integer)list.get(indexes.get(k).intValue()));
+    		found = selectByIds(conn, getClassTable(name), ids);
+    		Object o;
+    		for (int k=0; k<indexes.size(); k++) {
+    			o = found.get(ids.get(k));
+    			if (o==null)
+    				missing = true;
+    			list.set(indexes.get(k).intValue(), o);
+    		}
+    	}
+    	if (missing)
+    		list.removeAll(Collections.singleton(null));
+    }
+    
+    
+    /**
+     * Second phase of restoration: fetches the objects restored objects
+     * reference, with one query per referenced class (objects they
+     * reference in turn are fetched the same way), wires them, then calls
+     * <code>_init_()</code> methods in restoration order.
+     */
+    private void resolve (Connection conn, RequestCache requestCache)
+    throws OSQLException {
+    	ArrayList<Deferred> l;
+    	Deferred d;
+    	while (!requestCache.unresolved.isEmpty()) {
+    		l = new ArrayList<Deferred>(requestCache.unresolved);
+    		requestCache.unresolved.clear();
+    		// Referenced IDs, by referenced class
+    		HashMap<ClassTable,LinkedHashSet<Integer>> refs = new HashMap<ClassTable,LinkedHashSet<Integer>>();
+    		ClassTable t; LinkedHashSet<Integer> ids; Object o;
+    		for (int k=0; k<l.size(); k++) {
+    			d = l.get(k);
+    			t = getClassTable(d.column.field.getType());
+    			// Restored by a previous round (or referencing each other)?
+    			o = requestCache.restored(t.topClassTable, d.oid);
+    			if (o!=null) {
+    				set(d, o);
+    				l.remove(k--);
+    				continue;
+    			}
+    			ids = refs.get(t);
+    			if (ids==null) {
+    				ids = new LinkedHashSet<Integer>();
+    				refs.put(t, ids);
+    			}
+    			ids.add(d.oid);
+    		}
+    		// Fetch them all, then wire references
+    		HashMap<ClassTable,HashMap<Integer,Object>> found = new HashMap<ClassTable,HashMap<Integer,Object>>();
+    		Iterator<ClassTable> i = refs.keySet().iterator();
+    		while (i.hasNext()) {
+    			t = i.next();
+    			found.put(t, selectByIds(conn, t, refs.get(t)));
+    		}
+    		for (int k=0; k<l.size(); k++) {
+    			d = l.get(k);
+    			set(d, found.get(getClassTable(d.column.field.getType())).get(d.oid));
+    		}
+    	}
+    	// Initializers may query the database: restoration is over
+    	ArrayList<Object> objects = new ArrayList<Object>(requestCache.uninitialized);
+    	ArrayList<ClassTable> tables = new ArrayList<ClassTable>(requestCache.initializers);
+    	requestCache.endResolving();
+    	for (int k=0; k<objects.size(); k++)
+    		tables.get(k).initObject(conn, objects.get(k));
+    }
+    
+    
+    /**
+     * Wires this deferred reference to this object.
+     */
+    private static void set (Deferred d, Object o)
+    throws OSQLException {
+		try {
+			d.column.accessor.set(d.object, o);
+		} catch (IllegalAccessException e) {
+			// Should never be thrown, cause we jump over VM access restrictions
+            throw new OSQLException("/!\\ ERROR:  Object field is not accessible !!!"+
+                    "\nCould not SET field '"+d.column.field.getName()+
+                    "' from object "+d.object, e);
+		}
+    }
+    
+    
+    /**
+     * Sets this reference field of an object to <code>null</code>, and
+     * forgets the unfetched lazy reference it may hold, so that
+     * <code>NULL</code> is stored.
+     */
+    void clear (Connection conn, Object o, String field)
+    throws OSQLException {
+    	if (o==null)
+    		throw new OSQLException("Cannot clear a field of a null object.");
+    	ClassTable ct = getClassTable(o.getClass());
+    	FieldColumn col = ct.column(field);
+    	if (col==null || !(col instanceof FieldColumn._Object))
+    		throw new OSQLException("Not a reference field of class "+ct.className+": '"+field+"'");
+    	try {
+    		col.accessor.set(o, null);
+    	} catch (IllegalAccessException e) {
+    		throw new OSQLException("Could not clear field '"+field+"' of class "+ct.className, e);
+    	}
+    	ObjectRecord r = requestCache().record(ct, o);
+    	if (r!=null)
+    		r.resolved(col.index);
+    }
+    
+    
+    /**
+     * Fetches the objects that unfetched lazy references of these objects
+     * point to, with one query per referenced class (and per
+     * {@link #BATCH_SIZE} objects).
+     */
+    void fetchAll (Connection conn, Collection c)
+    throws OSQLException {
+    	if (c==null || c.isEmpty())
+    		return;
+        RequestCache requestCache = requestCache();
+    	requestCache.open();
+        try {
+        	// Gather unfetched references, by referenced class
+        	HashMap<ClassTable,ArrayList<Deferred>> refs = new HashMap<ClassTable,ArrayList<Deferred>>();
+        	Iterator i = c.iterator();
+        	Object o; ClassTable ct; ObjectRecord r; Integer oid;
+        	ArrayList<Deferred> l;
+        	while (i.hasNext()) {
+        		o = i.next();
+        		if (o==null)
+        			continue;
+        		ct = getClassTableFromCache(o.getClass());
+        		if (ct==null || ct.lazy.length==0)
+        			continue;
+        		r = requestCache.record(ct, o);
+        		if (r==null || !r.hasDeferred())
+        			continue;
+        		for (int k=0; k<ct.lazy.length; k++) {
+        			oid = r.deferred(ct.lazy[k].index);
+        			if (oid==null)
+        				continue;
+        			ClassTable t = getClassTable(ct.lazy[k].field.getType());
+        			l = refs.get(t);
+        			if (l==null) {
+        				l = new ArrayList<Deferred>();
+        				refs.put(t, l);
+        			}
+        			l.add(new Deferred(o, r, ct.lazy[k], oid));
+        		}
+        	}
+        	// Fetch referenced objects and fill references
+        	Iterator<ClassTable> t = refs.keySet().iterator();
+        	ClassTable rt; HashMap<Integer,Object> found; Deferred d;
+        	while (t.hasNext()) {
+        		rt = t.next();
+        		l = refs.get(rt);
+        		ArrayList<Integer> ids = new ArrayList<Integer>(l.size());
+        		for (int k=0; k<l.size(); k++)
+        			ids.add(l.get(k).oid);
+        		found = selectByIds(conn, rt, ids);
+        		for (int k=0; k<l.size(); k++) {
+        			d = l.get(k);
+        			try {
+        				d.column.accessor.set(d.object, found.get(d.oid));
+        			} catch (IllegalAccessException e) {
+        				// Should never be thrown, cause we jump over VM access restrictions
+        	            throw new OSQLException("/!\\ ERROR:  Object field is not accessible !!!"+
+        	                    "\nCould not SET field '"+d.column.field.getName()+
+        	                    "' from object "+d.object, e);
+        			}
+        			d.record.resolved(d.column.index);
+        		}
+        	}
+            requestCache.cacheAll();
+        } finally {
+        	requestCache.close();
+        }
+    }
+    
+    
+    /**
+     * Returns the stored objects of this <code>ClassTable</code> with these
+     * IDs, by ID, with one query per {@link #BATCH_SIZE} IDs. Unknown IDs
+     * are missing from the result.
+     */
+    HashMap<Integer,Object> selectByIds (Connection conn, ClassTable t, Collection<Integer> ids)
+    throws OSQLException {
+    	HashMap<Integer,Object> found = new HashMap<Integer,Object>();
+    	if (ids.isEmpty())
+    		return found;
+        RequestCache requestCache = requestCache();
+    	ReentrantReadWriteLock.ReadLock lock = t.topClassTable.lock.readLock();
+    	requestCache.open();
+    	lock.lock();
+        try {
+        	Iterator<Integer> i = ids.iterator();
+        	StringBuffer where = new StringBuffer();
+        	while (i.hasNext()) {
+        		where.setLength(0);
+        		where.append("\"");
+        		where.append(t.table.primaryKey);
+        		where.append("\" IN (");
+        		for (int n=0; n<BATCH_SIZE && i.hasNext(); n++) {
+        			if (n>0)
+        				where.append(", ");
+        			where.append(i.next());
+        		}
+        		where.append(")");
+        		List l = selectAll(conn, t, where.toString(), null, null, null, null, 0, 0, null);
+        		Object o;
+        		for (int k=0; k<l.size(); k++) {
+        			o = l.get(k);
+        			found.put(requestCache.get(o).id, o);
+        		}
+        	}
+        	return found;
+        } finally {
+        	lock.unlock();
+        	requestCache.close();
+        }
+    }
+    
+    
+    /**
+     * Returns the number of stored objects of this <code>Class</code> that
+     * fulfill this <code>where</code> clause.
+     * 
+     * @param conn
+     * @param c
+     * @param where
+     * @return
+     * @throws OSQLException
+     */
+    int count (Connection conn, Class c, String where)
+    throws OSQLException {
+    	return count(conn, c, where, null);
+    }
+    
+    
+    /**
+     * @param args	the values of the bind variables (<code>?</code>) of
+     * 				<code>where</code>, <code>null</code> if it has none
+     */
+    int count (Connection conn, Class c, String where, Object[] args)
+    throws OSQLException {
+    	if (c==null)
+    		return 0;
+        ClassTable ct = getExistingClassTable(c);
+        // Unknown class? Zero object stored
+        if (ct==null)
+        	return 0;
+        flushBehind(ct);
+        /*
+         * Build query
+         */ 
+        StringBuffer q;
+        if ((where!=null) && (!where.equals(""))) {
+    		StringBuffer f = new StringBuffer();
+    		StringBuffer j = new StringBuffer();
+    		// Without the view, fields are named after their table
+    		where = parse(ct, where, args, ct.table.primaryKey!=null, f, j);
+    		q = countQuery(conn, ct, where, f, j);
+        } else if (args!=null && args.length>0)
+    		throw new OSQLException("No bind variable in an empty WHERE clause for "+args.length+" value(s).");
+        else
+        	q = countQuery(conn, ct, null, null, null);
+        String sql = q.toString();
+        /*
+         * Execute query
+         */
+        ResultSet rs = null;
+        RequestCache requestCache = requestCache();
+    	ReentrantReadWriteLock.ReadLock lock = ct.topClassTable.lock.readLock();
+    	requestCache.open();
+    	lock.lock();
+        try {
+        	try {
+        		rs = query(sql, args);
+        	} catch (SQLException e) {
+                throw new OSQLException("Could not create SQL statement:\n"+q.toString(), e);
+        	}
         	// Read result and return it
             rs.next();
             return rs.getInt(1);
@@ -847,13 +2316,77 @@ public final class Database {
         } finally {
             // Attempt to close ResultSet
             try {
-                rs.close();
+            	if (rs!=null)
+            		close(rs, sql, args);
             } catch (SQLException e) {
                 throw new OSQLException("Could not close SQL result set:\n"+rs.toString(), e);
+            } finally {
+            	// Whatever happens, release the lock and request
+            	lock.unlock();
+            	requestCache.close();
             }
         }
     }
-
+    
+    
+    /**
+     * Builds the count query of this class. Rather than the whole view, it
+     * only joins the tables of the hierarchy its WHERE clause and access
+     * rights need.
+     */
+    private StringBuffer countQuery (Connection conn, ClassTable ct, String where, StringBuffer f, StringBuffer j) {
+        StringBuffer q = new StringBuffer("SELECT COUNT(*) FROM ");
+        if (ct.table.primaryKey==null) {
+        	// No hierarchy to spare
+        	q.append("(SELECT");
+        	ct.appendView(conn.user, q, f, j);
+        	q.append(")");
+        	if (where!=null) {
+        		q.append(" WHERE ");
+        		q.append(where);
+        	}
+        	return q;
+        }
+        String used = where==null ? "" : where+j;
+        StringBuffer id = new StringBuffer("\"");
+        id.append(ct.table.name);
+        id.append("\".\"");
+        id.append(ct.table.primaryKey);
+        id.append("\"");
+        q.append("\"");
+        q.append(ct.table.name);
+        q.append("\"");
+        // Rows of all classes of the hierarchy share their ID
+        for (ClassTable t=ct.superClassTable; t!=null && t.clazz!=Object.class; t=t.superClassTable) {
+        	if (used.indexOf("\""+t.table.name+"\".")==-1 && !(t==ct.topClassTable && ct.table.hasAccessRights))
+        		continue;
+        	q.append("\nJOIN \"");
+        	q.append(t.table.name);
+        	q.append("\" ON \"");
+        	q.append(t.table.name);
+        	q.append("\".\"");
+        	q.append(t.table.primaryKey);
+        	q.append("\"=");
+        	q.append(id);
+        }
+        if (j!=null)
+        	q.append(j);
+        StringBuffer cond = new StringBuffer();
+        ct.appendAccess(conn.user, cond);
+        if (where!=null) {
+        	if (cond.length()>0)
+        		cond.append(" AND ");
+        	cond.append("(");
+        	cond.append(where);
+        	cond.append(")");
+        }
+        if (cond.length()>0) {
+        	q.append("\nWHERE ");
+        	q.append(cond);
+        }
+        return q;
+    }
+    
     
     String toString(Object o)
     throws OSQLException {
@@ -869,11 +2402,58 @@ public final class Database {
     }
     
     
-/*
- * =========================================================================
- */    
-
-        
+/*
+ * =========================================================================
+ */    
+
+        
+    /**
+     * Enables group commit: concurrent {@link Connection#store(Object)}
+     * calls are gathered for up to <code>window</code> milliseconds, or
+     * until <code>size</code> of them are waiting, and committed together.
+     * Each caller still gets its own success or failure.
+     * <p>
+     * A <code>size</code> lower than 2 disables group commit.
+     * 
+     * @param window	how long (in milliseconds) to wait for more requests
+     * @param size		maximum number of requests per commit
+     */
+    public void setGroupCommit (long window, int size)
+    throws OSQLException {
+    	groupCommit = size<2 ? null : new GroupCommit(this, window, size);
+    }
+    
+    
+    /**
+     * Sets how long (in milliseconds) a request waits for an SQL connection
+     * when all of them are in use, before failing; defaults to 10 seconds.
+     */
+    public void setPoolTimeout (long timeout)
+    throws OSQLException {
+    	pool.setTimeout(timeout);
+    }
+    
+    
+    /**
+     * Returns the background writer of classes with the
+     * <code>writeBehind=true</code> table property, to flush it or read its
+     * metrics.
+     */
+    public WriteBehind writeBehind () {
+    	return writeBehind;
+    }
+    
+    
+    /**
+     * Returns the second-level cache of this class hierarchy, to read its
+     * metrics, <code>null</code> if its top class declares none.
+     */
+    public SecondLevelCache secondLevelCache (Class c)
+    throws OSQLException {
+    	return getClassTable(c).cache.second;
+    }
+    
+    
     public Connection connect (String login, String password)
     throws OSQLException {
 /*        StringBuffer w = new StringBuffer("\"login\"='");
@@ -884,7 +2464,13 @@ public final class Database {
         User user = (User)get(sysConn, User.class, w.toString(), null);
         if (user==null)
             throw new OSQLException("Wrong login/password.");*/
-        User user = new User(this, login, password);
+        User user;
+        systemLock.lock();
+        try {
+        	user = new User(this, login, password);
+        } finally {
+        	systemLock.unlock();
+        }
         if (user.login.equals("root"))
             return sysConn;
         return new Connection(this, user);
@@ -907,26 +2493,31 @@ public final class Database {
         q.append(mainGroup);
         q.append("'");
         ResultSet rs;
+        systemLock.lock();
         try {
-            rs = statement.executeQuery(q.toString());
-        } catch (SQLException e) {
-            throw new OSQLException("System table \".Group\" is probably missing.\nCould not execute SQL query: "+q.toString(), e);
-        }
-        short id;
-        try {
-            rs.next();
-            id = (short)rs.getShort(1);
-        } catch (SQLException e) {
-            throw new OSQLAccessViolation("Group does not exists: "+mainGroup, e);
+	        try {
+	            rs = system.statement.executeQuery(q.toString());
+	        } catch (SQLException e) {
+	            throw new OSQLException("System table \".Group\" is probably missing.\nCould not execute SQL query: "+q.toString(), e);
+	        }
+	        short id;
+	        try {
+	            rs.next();
+	            id = (short)rs.getShort(1);
+	        } catch (SQLException e) {
+	            throw new OSQLAccessViolation("Group does not exists: "+mainGroup, e);
+	        } finally {
+	            // Attempt to close ResultSet
+	            try {
+	                rs.close();
+	            } catch (SQLException e) {
+	                throw new OSQLException("Could not close SQL result set:\n"+rs.toString(), e);
+	            }
+	        }
+        	new User(conn.db, login, password, id, null);
         } finally {
-            // Attempt to close ResultSet
-            try {
-                rs.close();
-            } catch (SQLException e) {
-                throw new OSQLException("Could not close SQL result set:\n"+rs.toString(), e);
-            }
+        	systemLock.unlock();
         }
-        new User(conn.db, login, password, id, null);
     }
     
 
@@ -934,7 +2525,12 @@ public final class Database {
     throws OSQLException, OSQLAccessViolation {
 //        if (!conn.user.admin)
 //            throw new OSQLAccessViolation("You must be an administrator to add users.");
-        newGroup(group);
+        systemLock.lock();
+        try {
+        	newGroup(group);
+        } finally {
+        	systemLock.unlock();
+        }
     }
     
     private short newGroup(String group)
@@ -944,7 +2540,7 @@ public final class Database {
         StringBuffer q = new StringBuffer("SELECT TOP 1 \"id\" FROM \".Group\" ORDER BY \"id\" DESC");
         ResultSet rs;
         try {
-            rs = statement.executeQuery(q.toString());
+            rs = system.statement.executeQuery(q.toString());
         } catch (SQLException e) {
             throw new OSQLException("System table \".Group\" is probably missing.\nCould not execute SQL query: "+q.toString(), e);
         }
@@ -973,8 +2569,8 @@ public final class Database {
         q.append(group);
         q.append("')");
         try {
-            statement.executeUpdate(q.toString());
-            connection.commit();
+            system.statement.executeUpdate(q.toString());
+            system.connection.commit();
         } catch (SQLException e) {
             throw new OSQLAccessViolation("Group already exists: "+group, e);
         }
@@ -988,12 +2584,24 @@ public final class Database {
 
     private String parse(ClassTable t, String where, StringBuffer f, StringBuffer j)
     throws OSQLSyntaxError, OSQLException {
-    	parseBuffer.setLength(0);
+    	return parse(t, where, false, f, j);
+    }
+    
+    
+    /**
+     * Parses this WHERE clause, naming fields after the table holding them
+     * rather than after the view if <code>qualified</code>.
+     */
+    private String parse(ClassTable t, String where, boolean qualified, StringBuffer f, StringBuffer j)
+    throws OSQLSyntaxError, OSQLException {
+    	WhereParser p = parsers.get();
+    	p.buffer.setLength(0);
     	try {
-	    	reader.reset(where);
-	    	parser.ReInit(reader);
-	    	parser.Where(this, t, parseBuffer, f, j);
-	    	return parseBuffer.toString();
+	    	p.reader.reset(where);
+	    	p.parser.ReInit(p.reader);
+	    	p.parser.qualified = qualified;
+	    	p.parser.Where(this, t, p.buffer, f, j);
+	    	return p.buffer.toString();
     	} catch (IOException e) {
     		throw new OSQLException("Could not parse WHERE clause.", e);
     	} catch (ParseException e) {
@@ -1004,6 +2612,227 @@ public final class Database {
     	}
     }
     
+    
+    /**
+     * Parses this WHERE clause, or returns the template of its class if it
+     * has bind variables (<code>args</code> not <code>null</code>): those
+     * are parsed once, so that the same SQL (and prepared statement) serves
+     * all their values.
+     */
+    private String parse(ClassTable t, String where, Object[] args, StringBuffer f, StringBuffer j)
+    throws OSQLSyntaxError, OSQLException {
+    	return parse(t, where, args, false, f, j);
+    }
+    
+    
+    private String parse(ClassTable t, String where, Object[] args, boolean qualified, StringBuffer f, StringBuffer j)
+    throws OSQLSyntaxError, OSQLException {
+    	if (args==null)
+    		return parse(t, where, qualified, f, j);
+    	Template tp;
+    	synchronized (t.templates) {
+    		tp = t.templates.get(where);
+    	}
+    	if (tp==null) {
+    		StringBuffer tf = new StringBuffer();
+    		StringBuffer tj = new StringBuffer();
+    		tp = new Template(parse(t, where, tf, tj), parse(t, where, true, new StringBuffer(), new StringBuffer()), tf.toString(), tj.toString());
+    		synchronized (t.templates) {
+    			t.templates.put(where, tp);
+    			// Least recently used first
+    			if (t.templates.size()>ClassTable.TEMPLATES) {
+    				Iterator<String> i = t.templates.keySet().iterator();
+    				i.next();
+    				i.remove();
+    			}
+    		}
+    	}
+    	if (tp.params!=args.length)
+    		throw new OSQLException("WHERE clause has "+tp.params+" bind variable(s), "+args.length+" value(s) given: "+where);
+    	f.append(tp.fields);
+    	j.append(tp.joins);
+    	return qualified ? tp.qualified : tp.where;
+    }
+    
+    
+    /**
+     * Resolves this field path as the WHERE clause parser does, adding the
+     * column and joins it needs to <code>f</code> and <code>j</code> unless
+     * already there, and returns its label.
+     */
+    private String parsePath(ClassTable t, String path, StringBuffer f, StringBuffer j)
+    throws OSQLSyntaxError, OSQLException {
+    	WhereParser p = parsers.get();
+    	p.buffer.setLength(0);
+    	StringBuffer column = new StringBuffer();
+    	try {
+	    	p.reader.reset(path);
+	    	p.parser.ReInit(p.reader);
+	    	p.parser.qualified = false;
+	    	p.parser.Path(this, t, p.buffer, column, j);
+	    	if (f.indexOf(column.toString())==-1)
+	    		f.append(column);
+	    	return p.buffer.toString();
+    	} catch (IOException e) {
+    		throw new OSQLException("Could not parse field path.", e);
+    	} catch (ParseException e) {
+    		throw new OSQLSyntaxError("Error parsing field path: '"+path+"'", e);
+    	}
+    }
+    
+    
+    /**
+     * Starts a transaction bound to the current thread: all following store
+     * and remove operations of this thread share a single SQL transaction,
+     * until {@link #commit(Connection)} or {@link #rollback(Connection)} is
+     * called.
+     * <p>
+     * The class hierarchies written to stay locked, and objects are
+     * published to class caches, only when the transaction ends. Any failed
+     * operation rolls the whole transaction back.
+     * 
+     * @param conn	the <code>Connection</code> this operation is done on
+     * 				behalf of
+     * @throws OSQLException	thrown if this thread is already processing a
+     * 							request or a transaction
+     */
+    void begin (Connection conn)
+    throws OSQLException {
+    	requestCache().begin();
+    }
+    
+    
+    /**
+     * Commits the transaction of the current thread.
+     * 
+     * @param conn	the <code>Connection</code> this operation is done on
+     * 				behalf of
+     * @throws OSQLException	thrown if there is no transaction in progress,
+     * 							or if it cannot be committed (in which case it
+     * 							is rolled back)
+     */
+    void commit (Connection conn)
+    throws OSQLException {
+    	requestCache().end(true);
+    }
+    
+    
+    /**
+     * Rolls back the transaction of the current thread.
+     * 
+     * @param conn	the <code>Connection</code> this operation is done on
+     * 				behalf of
+     * @throws OSQLException	thrown if there is no transaction in progress
+     */
+    void rollback (Connection conn)
+    throws OSQLException {
+    	requestCache().end(false);
+    }
+    
+    
+    /**
+     * Executes this SQL query on a statement of its own within the session of
+     * the current request, so that nested queries never close each other's
+     * result sets.
+     * 
+     * @param q	the SQL query to execute
+     * @return	the query result, to be closed with {@link #close(ResultSet)}
+     * @throws SQLException	thrown if the query fails
+     */
+    ResultSet query (String q)
+    throws SQLException {
+    	return query(q, 0);
+    }
+    
+    
+    /**
+     * Executes this query, hinting the driver to read rows
+     * <code>fetchSize</code> at a time (<code>0</code> to let it decide).
+     */
+    ResultSet query (String q, int fetchSize)
+    throws SQLException {
+    	Statement s = requestCache().session.connection.createStatement();
+    	try {
+    		if (fetchSize>0)
+    			s.setFetchSize(fetchSize);
+    		return s.executeQuery(q);
+    	} catch (SQLException e) {
+    		s.close();
+    		throw e;
+    	}
+    }
+    
+    
+    /**
+     * Executes this query with these values of its bind variables, through
+     * a prepared statement of the session, or as {@link #query(String)} if
+     * <code>args</code> is <code>null</code>. The result set must be closed
+     * by {@link #close(ResultSet, String, Object[])}.
+     */
+    ResultSet query (String q, Object[] args)
+    throws SQLException, OSQLException {
+    	if (args==null)
+    		return query(q);
+    	Session.StatementPool pool = requestCache().session.pool(q);
+    	PreparedStatement ps = pool.get();
+    	try {
+    		for (int i=0; i<args.length; i++) {
+    			Object v = args[i];
+    			if (v==null)
+    				ps.setNull(i+1, Types.NULL);
+    			else if (v instanceof Character)
+    				ps.setString(i+1, v.toString());
+    			else if (v instanceof java.util.Date && !(v instanceof Timestamp))
+    				ps.setTimestamp(i+1, new Timestamp(((java.util.Date)v).getTime()));
+    			else
+    				ps.setObject(i+1, v);
+    		}
+    		return ps.executeQuery();
+    	} catch (SQLException e) {
+    		pool.release(ps);
+    		throw e;
+    	}
+    }
+    
+    
+    /**
+     * Closes a <code>ResultSet</code> obtained from
+     * {@link #query(String, Object[])}, giving its prepared statement back
+     * to the session.
+     */
+    void close (ResultSet rs, String q, Object[] args)
+    throws SQLException {
+    	if (args==null) {
+    		close(rs);
+    		return;
+    	}
+    	PreparedStatement ps = (PreparedStatement)rs.getStatement();
+    	rs.close();
+    	requestCache().session.pool(q).release(ps);
+    }
+    
+    
+    /**
+     * Closes a <code>ResultSet</code> obtained from {@link #query(String)}
+     * along with its statement.
+     */
+    static void close (ResultSet rs)
+    throws SQLException {
+    	Statement s = rs.getStatement();
+    	rs.close();
+    	if (s!=null)
+    		s.close();
+    }
+    
+    
+    /**
+     * Returns the <code>RequestCache</code> of the calling thread.
+     */
+    RequestCache requestCache () {
+    	return requestCaches.get();
+    }
+    
+    
     /**
      * Creates a new <code>ClassTable</code> tailored to handle this
      * <code>Class</code> and store it in database.
@@ -1029,7 +2858,9 @@ public final class Database {
         		tc = tc.getSuperclass();
         // Store in db
         ClassTable table = new ClassTable(sysConn, c, st, getClassTable(tc));
-        tables.put(c, table);
+        synchronized (tables) {
+        	tables.put(c, table);
+        }
         return table;
     }
     
@@ -1062,7 +2893,26 @@ public final class Database {
         if (t!=null)
             return t;
         // ClassTable is unknown, build a new one from scratch
-        return createClassTable(c);
+        // (this writes to system tables: take the writers' turn first; the
+        // tables monitor is only held to access the map, never during SQL
+        // requests, so that virtual threads do not pin their carrier)
+        systemLock.lock();
+        try {
+    		// Someone may have built it while we were waiting
+            t = getExistingClassTable(c);
+            if (t!=null)
+                return t;
+    		t = createClassTable(c);
+    		// Make the new table visible to other sessions
+    		try {
+    			system.connection.commit();
+    		} catch (SQLException e) {
+    			throw new OSQLException("Could not commit new table for class "+c.getName()+".", e);
+    		}
+    		return t;
+        } finally {
+        	systemLock.unlock();
+        }
     }
 
 
@@ -1106,7 +2956,16 @@ public final class Database {
         if (t!=null)
             return t;
         // Table not in cache, attempt to load it from database
-        return getClassTableFromDB(c);
+        // (system tables are read through the system session)
+        systemLock.lock();
+        try {
+	        t = getClassTableFromCache(c);
+	        if (t!=null)
+	            return t;
+	        return getClassTableFromDB(c);
+        } finally {
+        	systemLock.unlock();
+        }
     }
     
     
@@ -1119,7 +2978,9 @@ public final class Database {
      * 			if it is not in cache 
      */
     private ClassTable getClassTableFromCache(Class c) {
-        return (ClassTable)tables.get(c);
+    	synchronized (tables) {
+    		return (ClassTable)tables.get(c);
+    	}
     }
     
     
@@ -1162,7 +3023,7 @@ public final class Database {
         ResultSet rs;
         try {
         	// Attempt to execute query
-            rs = statement.executeQuery(q.toString());
+            rs = system.statement.executeQuery(q.toString());
         } catch (SQLException e) {
         	// Error: system class table is missing
             // "Table not found: <OSQL Tables table name>" 
@@ -1193,7 +3054,9 @@ public final class Database {
             	getClassTable(c.getSuperclass()),
             	getClassTable(tc));
             // Store it in cache and return it
-            tables.put(c, t);
+            synchronized (tables) {
+            	tables.put(c, t);
+            }
             return t;
         } catch (SQLException e) {
             // "No data available" => ClassTable is not in DB
@@ -1365,26 +3228,34 @@ public final class Database {
 	}
 
     
-    synchronized void close (AdminConnection conn)
+    void close (AdminConnection conn)
     throws OSQLException {
         if (conn!=sysConn)
             throw new OSQLException("You need administrator privileges.");
-        if (logLevel>LOG_NONE) {
-            StringBuffer log = new StringBuffer("*** Closing database ");
-            log.append(sysConn.user);
-            log.append("@");
-            log.append(url);
-            log.append(" ...  (up ");
-            log.append((System.currentTimeMillis()-startTime)/1000.0);
-            log.append("s)");
-            out.println(log.toString());
-        }
+        // Write deferred objects
+        writeBehind.close();
+        // Let ongoing writers finish their job
+        systemLock.lock();
         try {
-            connection.commit();
-        } catch (SQLException e) {
-            throw new OSQLException("Could not commit last changes before closing.", e);
+	        if (logLevel>LOG_NONE) {
+	            StringBuffer log = new StringBuffer("*** Closing database ");
+	            log.append(sysConn.user);
+	            log.append("@");
+	            log.append(url);
+	            log.append(" ...  (up ");
+	            log.append((System.currentTimeMillis()-startTime)/1000.0);
+	            log.append("s)");
+	            out.println(log.toString());
+	        }
+	        try {
+	            system.connection.commit();
+	        } catch (SQLException e) {
+	            throw new OSQLException("Could not commit last changes before closing.", e);
+	        }
+	        quit();
+        } finally {
+        	systemLock.unlock();
         }
-        quit();
     }
 	
     
@@ -1399,12 +3270,10 @@ public final class Database {
 	throws Throwable {
 //        super.finalize();
 //		statement.executeUpdate("SHUTDOWN COMPACT");
-		try {
-            if (statement!=null)
-                statement.close();      // Attempt to close SQL statement
-		} catch (SQLException e) {}
-        if (connection!=null)
-            connection.close();         // Attempt to close connection to SQL database
+        if (pool!=null)
+            pool.close();               // Close idle pooled connections
+        if (system!=null)
+            system.close();             // Close system connection to SQL database
 	}
 	
     
@@ -1463,16 +3332,486 @@ public final class Database {
 	
 	
 	
+	/**
+	 * Per-thread state of the request being processed: objects already seen
+	 * (to avoid infinite loops with recursive referencing) and class hierarchy
+	 * locks held until the request completes.
+	 */
 	final class RequestCache {
 		
 	
 	    final IdentityHashMap<Object,ObjectRecord> objects;
 	    final HashMap<Integer,ObjectRecord>        ids;
+	    private final ArrayList<ReentrantReadWriteLock> locks;
+	    /**
+	     * Request depth each lock was taken at: outside transactions, locks
+	     * taken by a nested request (e.g. a store while a cursor is open)
+	     * are released when it ends.
+	     */
+	    private final ArrayList<Integer> lockDepths;
+	    /**
+	     * Whether changes may have been written since the last commit or
+	     * rollback.
+	     */
+	    private boolean uncommitted;
+	    /**
+	     * Records stored or restored by the current transaction, published to
+	     * class caches on commit.
+	     */
+	    private final IdentityHashMap<Object,ObjectRecord> pending;
+	    /**
+	     * Records removed by the current operation or transaction, evicted
+	     * from class caches on commit.
+	     */
+	    private final ArrayList<ObjectRecord> removed;
+	    private final ArrayList<ClassTable> removedFrom;
+	    /**
+	     * Session leased for the request, <code>null</code> between requests.
+	     */
+	    Session session;
+	    /**
+	     * Nesting depth of requests (e.g. from <code>_init_</code> methods),
+	     * counting the enclosing transaction if any.
+	     */
+	    private int depth;
+	    /**
+	     * Whether a transaction is in progress.
+	     */
+	    private boolean transaction;
+	    /**
+	     * Whether subclass rows of new objects are batched.
+	     */
+	    boolean batching;
+	    /**
+	     * Batched INSERT statements, and how many rows they hold.
+	     */
+	    private final ArrayList<Batch> batches;
+	    int batched;
+	    /**
+	     * Whether restored objects are wired and initialized once all rows
+	     * are read, and references and objects left to do so.
+	     */
+	    boolean resolving;
+	    private final ArrayList<Deferred> unresolved;
+	    private final ArrayList<Object> uninitialized;
+	    private final ArrayList<ClassTable> initializers;
+	    /**
+	     * Objects restored by the current request, or transaction (whose
+	     * objects only reach class caches on commit), by top class and ID.
+	     */
+	    private final HashMap<ClassTable,HashMap<Integer,Object>> restored;
 		
 		
 		private RequestCache () {
 	        this.objects = new IdentityHashMap<Object,ObjectRecord>();
 	        this.ids     = new HashMap<Integer,ObjectRecord>();
+	        this.locks   = new ArrayList<ReentrantReadWriteLock>();
+	        this.lockDepths = new ArrayList<Integer>();
+	        this.pending = new IdentityHashMap<Object,ObjectRecord>();
+	        this.removed = new ArrayList<ObjectRecord>();
+	        this.removedFrom = new ArrayList<ClassTable>();
+	        this.batches = new ArrayList<Batch>();
+	        this.unresolved = new ArrayList<Deferred>();
+	        this.uninitialized = new ArrayList<Object>();
+	        this.initializers = new ArrayList<ClassTable>();
+	        this.restored = new HashMap<ClassTable,HashMap<Integer,Object>>();
+		}
+		
+		
+		/**
+		 * Locks the class hierarchy of this <code>ClassTable</code> for
+		 * writing, unless this request already holds it.
+		 */
+		void lock (ClassTable ct)
+		throws OSQLException {
+			ReentrantReadWriteLock lock = ct.topClassTable.lock;
+			uncommitted = true;
+			if (lock.isWriteLockedByCurrentThread())
+				return;
+			// A read lock cannot be upgraded: fail rather than deadlock
+			if (lock.getReadHoldCount()>0)
+				throw new OSQLException("Cannot store "+ct.className+" objects while reading them (e.g. from an "+ClassTable.INIT_METHOD+" method).");
+			try {
+				if (!lock.writeLock().tryLock(LOCK_TIMEOUT, TimeUnit.MILLISECONDS))
+					throw new OSQLException("Timed out waiting to write "+ct.className+" objects (possible deadlock with another writer).");
+			} catch (InterruptedException e) {
+				throw new OSQLException("Interrupted while waiting to write "+ct.className+" objects.", e);
+			}
+			locks.add(lock);
+			lockDepths.add(Integer.valueOf(depth));
+		}
+		
+		
+		/**
+		 * Starts a request, leasing a session unless this thread is already
+		 * processing one.
+		 */
+		void open ()
+		throws OSQLException {
+			if (depth++>0)
+				return;
+			try {
+				session = pool.lease();
+			} catch (OSQLException e) {
+				depth = 0;
+				throw e;
+			}
+		}
+		
+		
+		/**
+		 * Ends a request. The outermost one clears the request cache; unless
+		 * it is part of a transaction, it also rolls back uncommitted changes,
+		 * releases locks and gives the session back to the pool.
+		 */
+		void close () {
+			if (--depth>0) {
+				if (transaction) {
+					if (depth==1)
+						clear();
+				} else if (!locks.isEmpty() && lockDepths.get(locks.size()-1).intValue()>depth)
+					// Locks of a completed nested request are not needed anymore
+					try {
+						if (uncommitted) {
+							invalidate(objects);
+							session.connection.rollback();
+							uncommitted = false;
+						}
+					} catch (SQLException e) {
+						// Left to the outermost request
+					} finally {
+						unlock(depth);
+					}
+				return;
+			}
+			try {
+				if (!locks.isEmpty()) {
+					invalidate(objects);
+					session.connection.rollback();
+				}
+			} catch (SQLException e) {
+				// Broken connection: do not give it back to the pool
+				session.close();
+				session = null;
+			} finally {
+				clear();
+				unlock(0);
+				uncommitted = false;
+				if (session!=null)
+					pool.release(session);
+				else
+					pool.discard();
+				session = null;
+			}
+		}
+		
+		
+		/**
+		 * Starts a transaction, which holds the session until it ends.
+		 */
+		void begin ()
+		throws OSQLException {
+			if (depth>0)
+				throw new OSQLException(transaction ? "A transaction is already in progress." : "Cannot start a transaction within a request.");
+			open();
+			transaction = true;
+		}
+		
+		
+		/**
+		 * Commits or rolls back the transaction in progress, then releases
+		 * its locks and session.
+		 */
+		void end (boolean commit)
+		throws OSQLException {
+			if (!transaction)
+				throw new OSQLException("No transaction in progress.");
+			if (depth>1)
+				throw new OSQLException("Cannot end a transaction within a request.");
+			try {
+				if (commit) {
+					session.connection.commit();
+					publish(pending);
+				} else
+					invalidate(pending);
+			} catch (SQLException e) {
+				invalidate(pending);
+				throw new OSQLException("Could not commit transaction.", e);
+			} finally {
+				// close() rolls back anything left uncommitted
+				transaction = false;
+				pending.clear();
+				removed.clear();
+				removedFrom.clear();
+				close();
+			}
+		}
+		
+		
+		/**
+		 * Commits the changes of the current operation and caches processed
+		 * objects, unless a transaction defers both to its own commit.
+		 */
+		void commit ()
+		throws SQLException {
+			if (transaction) {
+				pending.putAll(objects);
+				return;
+			}
+			session.connection.commit();
+			uncommitted = false;
+			publish(objects);
+		}
+		
+		
+		/**
+		 * Rolls back the changes of the current operation. Within a
+		 * transaction, the whole transaction is rolled back and ended.
+		 */
+		void rollback ()
+		throws SQLException {
+			removed.clear();
+			removedFrom.clear();
+			invalidate(objects);
+			if (transaction) {
+				transaction = false;
+				invalidate(pending);
+				pending.clear();
+				// Drop the transaction's own hold on the session
+				depth--;
+			}
+			uncommitted = false;
+			session.connection.rollback();
+		}
+		
+		
+		/**
+		 * Returns an INSERT statement of this <code>ClassTable</code> to
+		 * batch a new row with. Rows whose filling is interrupted by the
+		 * insertion of another object of the same class go to another
+		 * statement.
+		 */
+		PreparedStatement batch (ClassTable ct, Session.StatementPool pool)
+		throws OSQLException {
+			Batch b;
+			for (int i=0; i<batches.size(); i++) {
+				b = batches.get(i);
+				if (b.table==ct && !b.filling) {
+					b.filling = true;
+					return b.row;
+				}
+			}
+			b = new Batch(ct, pool, pool.get());
+			batches.add(b);
+			return b.row;
+		}
+		
+		
+		/**
+		 * Adds the filled row of this statement to its batch.
+		 */
+		void addBatch (PreparedStatement row)
+		throws SQLException {
+			Batch b;
+			for (int i=0; i<batches.size(); i++) {
+				b = batches.get(i);
+				if (b.row==row) {
+					row.addBatch();
+					b.filling = false;
+					b.rows++;
+					batched++;
+					return;
+				}
+			}
+		}
+		
+		
+		/**
+		 * Sends batched rows to the database, superclass tables first.
+		 */
+		void flush ()
+		throws SQLException {
+			Collections.sort(batches);
+			Batch b;
+			for (int i=0; i<batches.size(); i++) {
+				b = batches.get(i);
+				b.row.executeBatch();
+				b.pool.release(b.row);
+			}
+			batches.clear();
+			batched = 0;
+		}
+		
+		
+		/**
+		 * Sends batched top-level rows to the database, so that rows
+		 * referencing them can be written.
+		 */
+		void flushTop ()
+		throws SQLException {
+			Batch b;
+			for (int i=batches.size()-1; i>=0; i--) {
+				b = batches.get(i);
+				if (b.depth>0 || b.filling || b.rows==0)
+					continue;
+				b.row.executeBatch();
+				b.pool.release(b.row);
+				batches.remove(i);
+				batched -= b.rows;
+			}
+		}
+		
+		
+		/**
+		 * Drops batched rows left over after an error.
+		 */
+		private void discard () {
+			Batch b;
+			for (int i=0; i<batches.size(); i++) {
+				b = batches.get(i);
+				try {
+					b.row.clearBatch();
+					b.pool.release(b.row);
+				} catch (SQLException e) {}
+			}
+			batches.clear();
+			batched = 0;
+		}
+		
+		
+		/**
+		 * Rolls back the changes of the current operation down to this
+		 * savepoint, leaving the transaction in progress.
+		 */
+		void rollback (Savepoint sp)
+		throws SQLException {
+			removed.clear();
+			removedFrom.clear();
+			invalidate(objects);
+			clear();
+			session.connection.rollback(sp);
+		}
+		
+		
+		/**
+		 * Returns the record of this object if it is known, either from class
+		 * caches or from the transaction in progress.
+		 */
+		ObjectRecord record (ClassTable ct, Object o) {
+			ObjectRecord r = ct.cache.get(o);
+			if (r==null && transaction)
+				r = pending.get(o);
+			return r;
+		}
+		
+		
+		/**
+		 * Returns whether the eviction of this record is scheduled.
+		 */
+		boolean removes (ObjectRecord r) {
+			return !removed.isEmpty() && removed.contains(r);
+		}
+		
+		
+		/**
+		 * Schedules the eviction of this record from its class cache once
+		 * changes are committed.
+		 */
+		void evict (ClassTable ct, ObjectRecord r) {
+			removed.add(r);
+			removedFrom.add(ct);
+			HashMap<Integer,Object> m = restored.get(ct.topClassTable);
+			if (m!=null)
+				m.remove(r.id);
+			if (transaction)
+				pending.remove(r.object());
+		}
+		
+		
+		/**
+		 * Starts a two-phase restoration, unless one is in progress.
+		 * 
+		 * @return	<code>true</code> if the caller leads it, and must end it
+		 */
+		boolean startResolving () {
+			if (resolving)
+				return false;
+			resolving = true;
+			return true;
+		}
+		
+		
+		/**
+		 * Records a reference to wire once rows are restored.
+		 */
+		void defer (Object o, FieldColumn col, Integer oid) {
+			unresolved.add(new Deferred(o, null, col, oid));
+		}
+		
+		
+		/**
+		 * Records an object to initialize once its references are wired.
+		 * 
+		 * @return	<code>false</code> if no two-phase restoration is in
+		 * 			progress
+		 */
+		boolean deferInit (Object o, ClassTable ct) {
+			if (!resolving)
+				return false;
+			uninitialized.add(o);
+			initializers.add(ct);
+			return true;
+		}
+		
+		
+		/**
+		 * Records an object restored by the current request.
+		 * 
+		 * @param top	the top <code>ClassTable</code> of its class
+		 */
+		void restored (ClassTable top, Integer oid, Object o) {
+			HashMap<Integer,Object> m = restored.get(top);
+			if (m==null) {
+				m = new HashMap<Integer,Object>();
+				restored.put(top, m);
+			}
+			m.put(oid, o);
+		}
+		
+		
+		/**
+		 * Returns the object of this class hierarchy with this ID if the
+		 * current request or transaction restored it already,
+		 * <code>null</code> otherwise.
+		 */
+		Object restored (ClassTable top, Integer oid) {
+			if (restored.isEmpty())
+				return null;
+			HashMap<Integer,Object> m = restored.get(top);
+			return m==null ? null : m.get(oid);
+		}
+		
+		
+		/**
+		 * Ends the two-phase restoration in progress.
+		 */
+		void endResolving () {
+			resolving = false;
+			unresolved.clear();
+			uninitialized.clear();
+			initializers.clear();
+		}
+		
+		
+		/**
+		 * Releases the class hierarchy locks taken deeper than this request
+		 * depth.
+		 */
+		private void unlock (int depth) {
+			for (int i=locks.size()-1; i>=0 && lockDepths.get(i).intValue()>depth; i--) {
+				locks.remove(i).writeLock().unlock();
+				lockDepths.remove(i);
+			}
 		}
 	    
 		
@@ -1490,10 +3829,44 @@ public final class Database {
 		private void clear() {
 			objects.clear();
 			ids.clear();
+			if (!transaction)
+				restored.clear();
 		}
 	    
 		
 	    private void cacheAll() {
+	    	if (transaction)
+	    		pending.putAll(objects);
+	    	else
+	    		publish(objects);
+	    }
+	    
+	    
+	    /**
+	     * Caches the objects restored so far by an outermost read still in
+	     * progress (a cursor), and forgets them. Within a transaction, they
+	     * are kept pending, and still found by ID until it ends.
+	     */
+	    void release () {
+	    	if (depth!=(transaction ? 2 : 1))
+	    		return;
+	    	cacheAll();
+	    	clear();
+	    }
+	    
+		
+	    /**
+	     * Forgets column values of these records, which might not be those of
+	     * the database anymore.
+	     */
+	    private void invalidate(IdentityHashMap<Object,ObjectRecord> objects) {
+	    	Iterator<ObjectRecord> i = objects.values().iterator();
+	    	while (i.hasNext())
+	    		i.next().invalidate();
+	    }
+	    
+		
+	    private void publish(IdentityHashMap<Object,ObjectRecord> objects) {
 	        Iterator i = objects.keySet().iterator();
 	        Object o; ClassTable t; ObjectRecord r;
 	        while (i.hasNext()) {
@@ -1502,9 +3875,14 @@ public final class Database {
 	            	continue;
 	            t = getClassTableFromCache(o.getClass());
 	            r = (ObjectRecord)objects.get(o);
+	            r.commit();
 	            t.cache.put(r);
 //	            System.out.println("Caching "+o+" #"+r.id+" ("+t.ids.size()+")");
 	        }
+	        for (int k=0; k<removed.size(); k++)
+	        	removedFrom.get(k).cache.remove(removed.get(k));
+	        removed.clear();
+	        removedFrom.clear();
 	    }
 	    
 	    
@@ -1512,4 +3890,106 @@ public final class Database {
 	
 	
 	
+	/**
+	 * An unfetched lazy reference.
+	 */
+	private static final class Deferred {
+		
+		final Object object;
+		final ObjectRecord record;
+		final FieldColumn column;
+		final Integer oid;
+		
+		Deferred (Object object, ObjectRecord record, FieldColumn column, Integer oid) {
+			this.object = object;
+			this.record = record;
+			this.column = column;
+			this.oid = oid;
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * A batched INSERT statement of a <code>ClassTable</code>.
+	 */
+	private static final class Batch implements Comparable<Batch> {
+		
+		final ClassTable table;
+		final Session.StatementPool pool;
+		final PreparedStatement row;
+		final int depth;
+		boolean filling;
+		int rows;
+		
+		Batch (ClassTable table, Session.StatementPool pool, PreparedStatement row) {
+			this.table = table;
+			this.pool = pool;
+			this.row = row;
+			this.filling = true;
+			int depth = 0;
+			for (ClassTable t=table.superClassTable; t!=null; t=t.superClassTable)
+				depth++;
+			this.depth = depth;
+		}
+		
+		public int compareTo (Batch b) {
+			return depth-b.depth;
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * A WHERE clause with bind variables, as translated by the parser for a
+	 * class: its SQL, also with fields named after their table, and the
+	 * columns and joins it adds to the view.
+	 */
+	static final class Template {
+		
+		final String where;
+		final String qualified;
+		final String fields;
+		final String joins;
+		/**
+		 * The number of bind variables.
+		 */
+		final int params;
+		
+		Template (String where, String qualified, String fields, String joins) {
+			this.where = where;
+			this.qualified = qualified;
+			this.fields = fields;
+			this.joins = joins;
+			int n = 0;
+			boolean quoted = false;
+			for (int i=0; i<where.length(); i++) {
+				char c = where.charAt(i);
+				if (c=='\'')
+					quoted = !quoted;
+				else if (c=='?' && !quoted)
+					n++;
+			}
+			this.params = n;
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * WHERE clause parser state, kept per thread.
+	 */
+	private static final class WhereParser {
+		
+		private final StringBuffer buffer = new StringBuffer();
+		private final StringReader reader = new StringReader("");
+		private final Parser parser       = new Parser(reader);
+		
+	}
+	
+	
+	
 }
\ No newline at end of file
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) Olivier Cornu 2004-2009 <o.cornu@gmail.com>
+ *
+ * This is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.osql;
+
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+
+
+/**
+ * Reference paths to load along with the objects of a query, such as
+ * <code>"customer.address"</code>.
+ * <p>
+ * Referenced objects are selected by the same query, through
+ * <code>LEFT JOIN</code>s, and restored from the same rows. Paths through
+ * classes with access rights, and objects of a subclass of the field type,
+ * are not joined: those objects are fetched afterwards, as usual. Lazy
+ * references along the paths are wired to the joined objects.
+ */
+public final class FetchPlan {
+
+
+	private final ArrayList<String> paths;
+	/**
+	 * Compiled plans, by queried class.
+	 */
+	private final HashMap<ClassTable,Joins> compiled;
+
+
+	public FetchPlan () {
+		this.paths = new ArrayList<String>();
+		this.compiled = new HashMap<ClassTable,Joins>();
+	}
+
+	public FetchPlan (String[] paths) {
+		this();
+		for (int i=0; i<paths.length; i++)
+			add(paths[i]);
+	}
+
+
+	/**
+	 * Adds a reference path: field names separated by dots.
+	 */
+	public synchronized FetchPlan add (String path) {
+		if (path==null || path.equals("") || path.startsWith(".") || path.endsWith(".") || path.indexOf("..")!=-1)
+			throw new OSQLException("Invalid fetch path: '"+path+"'");
+		paths.add(path);
+		compiled.clear();
+		return this;
+	}
+
+
+	public synchronized String toString () {
+		return "Fetch plan: "+paths;
+	}
+
+
+	/**
+	 * Returns the joins of this plan for queries of this class.
+	 */
+	synchronized Joins compile (Database db, ClassTable t)
+	throws OSQLException {
+		Joins j = compiled.get(t);
+		if (j==null) {
+			j = new Joins(db, t, paths);
+			compiled.put(t, j);
+		}
+		return j;
+	}
+
+
+
+	/**
+	 * The SQL and restoration plan of a <code>FetchPlan</code> for queries
+	 * of a class.
+	 */
+	static final class Joins {
+
+		/**
+		 * Columns to add to the view, after its own.
+		 */
+		final String fields;
+		/**
+		 * <code>LEFT JOIN</code>s to add after the view.
+		 */
+		final String joins;
+		/**
+		 * Joined classes, parents first, and the result column of their
+		 * objects.
+		 */
+		private final ClassTable[] tables;
+		private final int[] columns;
+
+
+		private Joins (Database db, ClassTable root, ArrayList<String> paths)
+		throws OSQLException {
+			StringBuffer f = new StringBuffer();
+			StringBuffer j = new StringBuffer();
+			ArrayList<ClassTable> tables = new ArrayList<ClassTable>();
+			ArrayList<Integer> columns = new ArrayList<Integer>();
+			// Joins by path prefix, and their alias
+			HashMap<String,String> aliases = new HashMap<String,String>();
+			HashMap<String,ClassTable> targets = new HashMap<String,ClassTable>();
+			int column = root.viewWidth()+1;
+			for (int p=0; p<paths.size(); p++) {
+				StringTokenizer st = new StringTokenizer(paths.get(p), ".");
+				ClassTable t = root;
+				String alias = null;
+				String prefix = "";
+				while (st.hasMoreTokens()) {
+					String name = st.nextToken();
+					prefix = prefix.length()==0 ? name : prefix+"."+name;
+					FieldColumn col = t.column(name);
+					if (col==null || !(col instanceof FieldColumn._Object) || col.field.getType().isArray())
+						throw new OSQLException("Not a reference field of class "+t.className+": '"+name+"'");
+					ClassTable target = db.getClassTable(col.field.getType());
+					if (target.hasAccessRights())
+						break;
+					if (!aliases.containsKey(prefix)) {
+						String a = "fetch"+tables.size();
+						// Table holding the reference
+						ClassTable d = t.declaring(name);
+						String from = alias==null ? d.table.name : alias+"."+level(t, d);
+						join(f, j, target, a, from, name);
+						aliases.put(prefix, a);
+						targets.put(prefix, target);
+						tables.add(target);
+						columns.add(Integer.valueOf(column));
+						column += width(target);
+					}
+					alias = aliases.get(prefix);
+					t = targets.get(prefix);
+				}
+			}
+			this.fields = f.toString();
+			this.joins = j.toString();
+			this.tables = tables.toArray(new ClassTable[tables.size()]);
+			this.columns = new int[columns.size()];
+			for (int i=0; i<this.columns.length; i++)
+				this.columns[i] = columns.get(i).intValue();
+		}
+
+
+		/**
+		 * Appends the columns and joins of this class hierarchy, referenced
+		 * by field <code>name</code> of table <code>from</code>.
+		 */
+		private static void join (StringBuffer f, StringBuffer j, ClassTable target, String alias, String from, String name) {
+			ClassTable top = target.topClassTable;
+			// Object ID, and class ID
+			f.append(", \"");
+			f.append(alias);
+			f.append(".0\".\"");
+			f.append(target.table.primaryKey);
+			f.append("\" AS \"");
+			f.append(alias);
+			f.append(".id\"");
+			if (!target.isFinal) {
+				f.append(", \"");
+				f.append(alias);
+				f.append(".");
+				f.append(level(target, top));
+				f.append("\".\".class\" AS \"");
+				f.append(alias);
+				f.append(".class\"");
+			}
+			// Columns, following the row plan
+			int l = 0;
+			for (ClassTable t=target; t!=null && t.clazz!=Object.class; t=t.superClassTable, l++) {
+				for (int k=0; k<t.fields.length; k++) {
+					f.append(", \"");
+					f.append(alias);
+					f.append(".");
+					f.append(l);
+					f.append("\".\"");
+					f.append(t.fields[k].field.getName());
+					f.append("\" AS \"");
+					f.append(alias);
+					f.append(".");
+					f.append(l);
+					f.append(".");
+					f.append(t.fields[k].field.getName());
+					f.append("\"");
+				}
+				// Target table joins on the reference, others on the ID
+				j.append("\nLEFT JOIN \"");
+				j.append(t.table.name);
+				j.append("\" AS \"");
+				j.append(alias);
+				j.append(".");
+				j.append(l);
+				j.append("\" ON \"");
+				j.append(alias);
+				j.append(".");
+				j.append(l);
+				j.append("\".\"");
+				j.append(t.table.primaryKey);
+				j.append("\"=\"");
+				if (l==0) {
+					j.append(from);
+					j.append("\".\"");
+					j.append(name);
+				} else {
+					j.append(alias);
+					j.append(".0\".\"");
+					j.append(target.table.primaryKey);
+				}
+				j.append("\"");
+			}
+		}
+
+
+		/**
+		 * Returns the number of columns a join of this class adds.
+		 */
+		private static int width (ClassTable t) {
+			int n = t.isFinal ? 1 : 2;
+			for (; t!=null && t.clazz!=Object.class; t=t.superClassTable)
+				n += t.fields.length;
+			return n;
+		}
+
+
+		/**
+		 * Returns the level of class <code>d</code> in the hierarchy of
+		 * <code>t</code> (0 for <code>t</code> itself).
+		 */
+		private static int level (ClassTable t, ClassTable d) {
+			int l = 0;
+			for (; t!=d; t=t.superClassTable)
+				l++;
+			return l;
+		}
+
+
+		/**
+		 * Restores the joined objects of the current row, children first
+		 * so that their parents find them when wiring references.
+		 */
+		void restore (Connection conn, ResultSet rs)
+		throws OSQLException {
+			for (int i=tables.length-1; i>=0; i--)
+				tables[i].restoreJoined(conn, rs, columns[i]);
+		}
+
+	}
+
+
+}
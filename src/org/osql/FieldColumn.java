@@ -38,21 +38,26 @@ class FieldColumn {
     public static final String INTEGER  = "INTEGER";
     public static final String BIGINT   = "BIGINT";
     public static final String FLOAT    = "FLOAT";
+    public static final String DOUBLE   = "DOUBLE";
     public static final String VARCHAR  = "VARCHAR";
     public static final String DATE 	= "DATETIME";
     
     
     // Column definition
     public final Field      field;
+    final Accessor          accessor;
     public final String     sqlType;
     public final int        type;
     private FieldColumn     next;
+    // Index in object snapshots, set by the ClassTable
+    int                     index;
 
     
     private FieldColumn (Field field, String sqlType, int type) {
         // Keep an accessible reference to this Field
         field.setAccessible(true);
         this.field = field;
+        this.accessor = new Accessor(field);
         // Keep types
         this.sqlType = sqlType;
         this.type = type;
@@ -61,51 +66,66 @@ class FieldColumn {
     }
     
     
-    final int store (Connection conn, ObjectRecord r, byte access, PreparedStatement row, int pos)
+    /**
+     * Reads the value of this column for the object of this record, as
+     * bound to SQL statements, into <code>state</code> at index
+     * <code>k</code>.
+     */
+    final void load (Connection conn, ObjectRecord r, byte access, ObjectRecord.State state, int k)
     throws OSQLException, SQLException {
         try {
-            set (conn, r, access, row, pos);
+            read(conn, r, access, state, k);
         } catch (IllegalAccessException e) {
             // Should never be thrown, cause we jump over VM access restrictions
             throw new OSQLException("/!\\ ERROR:  Object field is not accessible !!!"+
                     "\nCould not READ field '"+field.getName()+
                     "' from object "+r.object()+" #"+r.id, e);
         }
-        pos++;
-        if (next!=null)
-            return next.store (conn, r, access, row, pos);
-        return pos;
     }
     
     
-    final int restore (Connection conn, Object o, ResultSet row, int pos)
-    throws OSQLException, SQLException {
-        try {
-            get(conn, o, row, pos);
-        } catch (IllegalAccessException e) {
-            // Should never be thrown, cause we jump over VM access restrictions
-            throw new OSQLException("/!\\ ERROR:  Object field is not accessible !!!"+
-                    "\nCould not SET field '"+field.getName()+
-                    "' from object "+o, e);
-        }
-        pos++;
-        if (next!=null)
-            return next.restore(conn, o, row, pos);
-        return pos;
+    protected void read (Connection conn, ObjectRecord r, byte access, ObjectRecord.State state, int k)
+    throws OSQLException, SQLException, IllegalAccessException {
+        state.values[k] = snapshot(accessor.get(r.object()));
     }
     
     
-    protected void set (Connection conn, ObjectRecord r, byte access, PreparedStatement row, int pos)
+    /**
+     * Reads the value of this column as {@link #read} does, but without
+     * storing anything: a referenced object which would have to be stored
+     * to get its ID is read as {@link ObjectRecord#UNKNOWN}.
+     */
+    void peek (Connection conn, ObjectRecord r, ObjectRecord.State state, int k)
     throws OSQLException, SQLException, IllegalAccessException {
-    	if (r.object()==null)
-    		System.out.println("Record object: "+r.object());
-        row.setObject(pos, field.get(r.object()), type);
+        read(conn, r, r.access, state, k);
     }
     
     
-    protected void get (Connection conn, Object o, ResultSet row, int i)
+    void bind (PreparedStatement row, int pos, ObjectRecord.State state, int k)
+    throws SQLException {
+        row.setObject(pos, state.values[k], type);
+    }
+    
+    
+    protected void get (Connection conn, Object o, ResultSet row, int i, ObjectRecord.State state, int k)
     throws OSQLException, SQLException, IllegalAccessException {
-        field.set(o, row.getObject(i));
+        Object v = row.getObject(i);
+        accessor.set(o, v);
+        state.values[k] = snapshot(v);
+    }
+    
+    
+    /**
+     * Returns a copy of this value if it can be changed in place (dates,
+     * byte arrays), so that the snapshot does not change along with the
+     * field.
+     */
+    static Object snapshot (Object v) {
+    	if (v instanceof java.util.Date)
+    		return ((java.util.Date)v).clone();
+    	if (v instanceof byte[])
+    		return ((byte[])v).clone();
+    	return v;
     }
     
     
@@ -116,7 +136,7 @@ class FieldColumn {
     final void hash(Object o, StringBuffer buf)
     throws IllegalAccessException {
     	buf.append('|');
-    	buf.append(field.get(o));
+    	buf.append(accessor.get(o));
     	if (next!=null)
     		next.hash(o, buf);
     }
@@ -133,8 +153,7 @@ class FieldColumn {
         
         // Primitive types
         if (c==boolean.class)
-            return new FieldColumn(field, BOOLEAN, Types.BOOLEAN);
-//            return new _boolean(field);
+            return new _boolean(field);
         if (c==byte.class)
 //            return new Column(field, TINYINT, Types.TINYINT);
             return new _byte(field);
@@ -154,8 +173,7 @@ class FieldColumn {
 //            return new Column(field, FLOAT, Types.FLOAT);
             return new _float(field);
         if (c==double.class)
-            return new FieldColumn(field, FLOAT, Types.FLOAT);
-//            return new _double(field);
+            return new _double(field);
         
         // Primitive wrappers
         if (c==Boolean.class)
@@ -180,7 +198,7 @@ class FieldColumn {
           return new FieldColumn(field, FLOAT, Types.FLOAT);
 //            return new _Float(field);
         if (c==Double.class)
-          return new FieldColumn(field, FLOAT, Types.FLOAT);
+          return new FieldColumn(field, DOUBLE, Types.DOUBLE);
 //            return new _Double(field);
         
         // Strings
@@ -220,92 +238,111 @@ class FieldColumn {
     
     
     
-/*    static class _Boolean
-    extends Column {
+    /**
+     * Column of a primitive field. Values are kept as raw bits, and bound
+     * through typed JDBC setters, so that they are never boxed.
+     */
+    static abstract class _primitive
+    extends FieldColumn {
         
-        private _Boolean (Field field) {
-            super(field, BOOLEAN, Types.BOOLEAN);
+        private _primitive (Field field, String sqlType, int type) {
+            super(field, sqlType, type);
         }
         
+        protected final void read (Connection conn, ObjectRecord r, byte access, ObjectRecord.State state, int k)
+        throws OSQLException, SQLException, IllegalAccessException {
+            state.values[k] = null;
+            state.bits[k] = bits(r.object());
+        }
+        
+        /**
+         * Returns the value of this field as raw bits.
+         */
+        protected abstract long bits (Object o)
+        throws IllegalAccessException;
+        
     }
 
 
 
     static class _boolean
-    extends _Boolean {
+    extends _primitive {
         
         private _boolean (Field field) {
-            super(field);
+            super(field, BOOLEAN, Types.BOOLEAN);
         }
         
-        protected void get (Object o, ResultSet row, int i, Database db)
-        throws OSQLException, SQLException, IllegalAccessException { 
-            field.setBoolean(o, row.getBoolean(i));
+        protected long bits (Object o)
+        throws IllegalAccessException {
+            return accessor.getBoolean(o) ? 1 : 0;
         }
         
-    }
-
-
-
-    static class _Byte
-    extends Column {
+        void bind (PreparedStatement row, int pos, ObjectRecord.State state, int k)
+        throws SQLException {
+            row.setBoolean(pos, state.bits[k]!=0);
+        }
         
-        private _Byte (Field field) {
-            super(field, TINYINT, Types.TINYINT);
+        protected void get (Connection conn, Object o, ResultSet row, int i, ObjectRecord.State state, int k)
+        throws OSQLException, SQLException, IllegalAccessException { 
+            boolean v = row.getBoolean(i);
+            accessor.setBoolean(o, v);
+            state.bits[k] = v ? 1 : 0;
         }
         
-    }*/
+    }
 
 
 
     static class _byte
-    extends FieldColumn {
+    extends _primitive {
         
         private _byte (Field field) {
             super(field, TINYINT, Types.TINYINT);
         }
         
-        protected void get (Connection conn, Object o, ResultSet row, int i)
-        throws OSQLException, SQLException, IllegalAccessException { 
-            field.setByte(o, row.getByte(i));
+        protected long bits (Object o)
+        throws IllegalAccessException {
+            return accessor.getByte(o);
         }
         
-    }
-
-
-
-/*    static class _Short
-    extends Column {
+        void bind (PreparedStatement row, int pos, ObjectRecord.State state, int k)
+        throws SQLException {
+            row.setByte(pos, (byte)state.bits[k]);
+        }
         
-        private _Short (Field field) {
-            super(field, SMALLINT, Types.SMALLINT);
+        protected void get (Connection conn, Object o, ResultSet row, int i, ObjectRecord.State state, int k)
+        throws OSQLException, SQLException, IllegalAccessException { 
+            byte v = row.getByte(i);
+            accessor.setByte(o, v);
+            state.bits[k] = v;
         }
         
-    }*/
+    }
 
 
 
     static class _short
-    extends FieldColumn {
+    extends _primitive {
         
         private _short (Field field) {
             super(field, SMALLINT, Types.SMALLINT);
         }
         
-        protected void get (Connection conn, Object o, ResultSet row, int i)
-        throws OSQLException, SQLException, IllegalAccessException { 
-            field.setShort(o, row.getShort(i));
+        protected long bits (Object o)
+        throws IllegalAccessException {
+            return accessor.getShort(o);
         }
         
-    }
-
-
-
-    static class _Integer
-    extends FieldColumn {
+        void bind (PreparedStatement row, int pos, ObjectRecord.State state, int k)
+        throws SQLException {
+            row.setShort(pos, (short)state.bits[k]);
+        }
         
-        private _Integer (Field field) {
-            super(field, INTEGER, Types.INTEGER);
+        protected void get (Connection conn, Object o, ResultSet row, int i, ObjectRecord.State state, int k)
+        throws OSQLException, SQLException, IllegalAccessException { 
+            short v = row.getShort(i);
+            accessor.setShort(o, v);
+            state.bits[k] = v;
         }
         
     }
@@ -313,26 +350,27 @@ class FieldColumn {
 
 
     static class _int
-    extends _Integer {
+    extends _primitive {
         
         private _int (Field field) {
-            super(field);
+            super(field, INTEGER, Types.INTEGER);
         }
         
-        protected void get (Connection conn, Object o, ResultSet row, int i)
-        throws OSQLException, SQLException, IllegalAccessException { 
-            field.setInt(o, row.getInt(i));
+        protected long bits (Object o)
+        throws IllegalAccessException {
+            return accessor.getInt(o);
         }
         
-    }
-
-
-
-    static class _Long
-    extends FieldColumn {
+        void bind (PreparedStatement row, int pos, ObjectRecord.State state, int k)
+        throws SQLException {
+            row.setInt(pos, (int)state.bits[k]);
+        }
         
-        private _Long (Field field) {
-            super(field, BIGINT, Types.BIGINT);
+        protected void get (Connection conn, Object o, ResultSet row, int i, ObjectRecord.State state, int k)
+        throws OSQLException, SQLException, IllegalAccessException { 
+            int v = row.getInt(i);
+            accessor.setInt(o, v);
+            state.bits[k] = v;
         }
         
     }
@@ -340,53 +378,55 @@ class FieldColumn {
 
 
     static class _long
-    extends _Long {
+    extends _primitive {
         
         private _long (Field field) {
-            super(field);
+            super(field, BIGINT, Types.BIGINT);
         }
         
-        protected void get (Connection conn, Object o, ResultSet row, int i)
-        throws OSQLException, SQLException, IllegalAccessException { 
-            field.setLong(o, row.getLong(i));
+        protected long bits (Object o)
+        throws IllegalAccessException {
+            return accessor.getLong(o);
         }
         
-    }
-
-
-/*
-    static class _Float
-    extends Column {
+        void bind (PreparedStatement row, int pos, ObjectRecord.State state, int k)
+        throws SQLException {
+            row.setLong(pos, state.bits[k]);
+        }
         
-        private _Float (Field field) {
-            super(field, FLOAT, Types.FLOAT);
+        protected void get (Connection conn, Object o, ResultSet row, int i, ObjectRecord.State state, int k)
+        throws OSQLException, SQLException, IllegalAccessException { 
+            long v = row.getLong(i);
+            accessor.setLong(o, v);
+            state.bits[k] = v;
         }
         
-    }*/
+    }
 
 
 
     static class _float
-    extends FieldColumn {
+    extends _primitive {
         
         private _float (Field field) {
             super(field, FLOAT, Types.FLOAT);
         }
         
-        protected void get (Connection conn, Object o, ResultSet row, int i)
-        throws OSQLException, SQLException, IllegalAccessException { 
-            field.setFloat(o, row.getFloat(i));
+        protected long bits (Object o)
+        throws IllegalAccessException {
+            return Float.floatToRawIntBits(accessor.getFloat(o));
         }
         
-    }
-
-
-
-/*    static class _Double
-    extends Column {
+        void bind (PreparedStatement row, int pos, ObjectRecord.State state, int k)
+        throws SQLException {
+            row.setFloat(pos, Float.intBitsToFloat((int)state.bits[k]));
+        }
         
-        private _Double (Field field) {
-            super(field, FLOAT, Types.FLOAT);
+        protected void get (Connection conn, Object o, ResultSet row, int i, ObjectRecord.State state, int k)
+        throws OSQLException, SQLException, IllegalAccessException { 
+            float v = row.getFloat(i);
+            accessor.setFloat(o, v);
+            state.bits[k] = Float.floatToRawIntBits(v);
         }
         
     }
@@ -394,93 +434,135 @@ class FieldColumn {
 
 
     static class _double
-    extends _Double {
+    extends _primitive {
         
         private _double (Field field) {
-            super(field);
+            super(field, DOUBLE, Types.DOUBLE);
         }
         
-        protected void get (Object o, ResultSet row, int i, Database db)
-        throws OSQLException, SQLException, IllegalAccessException { 
-            field.setDouble(o, row.getDouble(i));
+        protected long bits (Object o)
+        throws IllegalAccessException {
+            return Double.doubleToRawLongBits(accessor.getDouble(o));
         }
         
-    }
-
-
-
-    static class _Character
-    extends Column {
+        void bind (PreparedStatement row, int pos, ObjectRecord.State state, int k)
+        throws SQLException {
+            row.setDouble(pos, Double.longBitsToDouble(state.bits[k]));
+        }
         
-        private _Character (Field field) {
-            super(field, CHAR, Types.CHAR);
+        protected void get (Connection conn, Object o, ResultSet row, int i, ObjectRecord.State state, int k)
+        throws OSQLException, SQLException, IllegalAccessException { 
+            double v = row.getDouble(i);
+            accessor.setDouble(o, v);
+            state.bits[k] = Double.doubleToRawLongBits(v);
         }
         
-    }*/
+    }
 
 
 
     static class _char
-    extends FieldColumn {
+    extends _primitive {
         
         private _char (Field field) {
             super(field, CHAR, Types.CHAR);
         }
         
-        protected void get (Connection conn, Object o, ResultSet row, int i)
-        throws OSQLException, SQLException, IllegalAccessException {
-            field.setChar(o, row.getString(i).charAt(0));
+        protected long bits (Object o)
+        throws IllegalAccessException {
+            return accessor.getChar(o);
         }
         
-    }
-
-
-
-/*    static class _String
-    extends Column {
-        
-        private _String (Field field) {
-            super(field, VARCHAR, Types.VARCHAR);
+        void bind (PreparedStatement row, int pos, ObjectRecord.State state, int k)
+        throws SQLException {
+            row.setString(pos, String.valueOf((char)state.bits[k]));
         }
         
-        protected void get (Object o, ResultSet row, int i, Database db)
-        throws OSQLException, SQLException, IllegalAccessException { 
-            field.set(o, row.getString(i));
+        protected void get (Connection conn, Object o, ResultSet row, int i, ObjectRecord.State state, int k)
+        throws OSQLException, SQLException, IllegalAccessException {
+            char v = row.getString(i).charAt(0);
+            accessor.setChar(o, v);
+            state.bits[k] = v;
         }
         
-    }*/
+    }
 
 
 
     static final class _Object
     extends FieldColumn {
         
+        // Whether referenced objects are only fetched on demand
+        boolean lazy;
+        
         private _Object (Field field) {
             super(field, INTEGER, Types.INTEGER);
         }
         
-        protected void set (Connection conn, ObjectRecord r, byte access, PreparedStatement row, int pos)
+        protected void read (Connection conn, ObjectRecord r, byte access, ObjectRecord.State state, int k)
         throws OSQLException, SQLException, IllegalAccessException {
-            Object fo = field.get(r.object());
+            Object fo = accessor.get(r.object());
             if (fo==null) {
-                row.setObject(pos, null);
+                // Unfetched lazy references are kept as is (cleared ones
+                // are forgotten by Connection.clear())
+                state.values[k] = r.deferred(index);
                 return;
             }
+            if (lazy)
+                r.resolved(index);
             if (fo.getClass().isArray()) {
-            	System.out.println(fo.getClass());
             	fo = new ArrayWrapper(conn, fo, r, access);
 //            	return;
             }
-            row.setInt(pos, conn.store(fo, r, access).id.intValue());
+            // Referenced object is stored (if need be) to get its ID; an
+            // unchanged stored one is neither locked nor walked through
+            ObjectRecord fr = conn.db.clean(conn, fo);
+            state.values[k] = (fr!=null ? fr : conn.store(fo, r, access)).id;
+        }
+        
+        void peek (Connection conn, ObjectRecord r, ObjectRecord.State state, int k)
+        throws OSQLException, SQLException, IllegalAccessException {
+            Object fo = accessor.get(r.object());
+            if (fo==null) {
+                state.values[k] = r.deferred(index);
+                return;
+            }
+            ObjectRecord fr = fo.getClass().isArray() ? null : conn.db.cached(fo);
+            state.values[k] = fr==null ? ObjectRecord.UNKNOWN : fr.id;
         }
 
-        protected void get (Connection conn, Object o, ResultSet row, int i)
+        protected void get (Connection conn, Object o, ResultSet row, int i, ObjectRecord.State state, int k)
         throws OSQLException, SQLException, IllegalAccessException {
             // Get object ID
             Integer oid = (Integer)row.getObject(i);
             // Null field value?
             if (oid==null) {
-                field.set(o, null);
+                accessor.set(o, null);
+                state.values[k] = null;
+                return;
+            }
+            // Lazy reference: wire it if its object is restored already
+            // (e.g. by a fetch plan), leave it to Connection.fetch() otherwise
+            if (lazy) {
+                ClassTable ft = conn.db.getClassTable(field.getType());
+                accessor.set(o, conn.db.requestCache().restored(ft.topClassTable, oid));
+                state.values[k] = oid;
+                return;
+            }
+            // Restoring many rows: wire cached objects now, others once
+            // fetched along with those of other rows
+            Database.RequestCache requestCache = conn.db.requestCache();
+            if (requestCache.resolving && !field.getType().isArray()) {
+                ClassTable ft = conn.db.getClassTable(field.getType());
+                Object fo = requestCache.restored(ft.topClassTable, oid);
+                if (fo==null) {
+                    ObjectRecord fr = ft.cache.getById(oid);
+                    fo = fr==null ? null : fr.object();
+                }
+                accessor.set(o, fo);
+                if (fo==null)
+                    requestCache.defer(o, this, oid);
+                state.values[k] = oid;
                 return;
             }
             // Do we have this object in cache?
@@ -500,9 +582,10 @@ class FieldColumn {
 //            System.out.println("type:"+field.getType());
             fo = conn.select(field.getType(), oid.intValue());
             if (fo.getClass()==ArrayWrapper.class)
-            	field.set(o, ((ArrayWrapper)fo).dump(conn));
+            	accessor.set(o, ((ArrayWrapper)fo).dump(conn));
             else
-            	field.set(o, fo);
+            	accessor.set(o, fo);
+            state.values[k] = oid;
         }
         
     }
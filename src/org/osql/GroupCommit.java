@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) Olivier Cornu 2004-2009 <o.cornu@gmail.com>
+ *
+ * This is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.osql;
+
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Collects concurrent store requests so that they share a single commit.
+ * <p>
+ * The first waiting thread leads a group: it waits for more requests until
+ * the group is full or its window has elapsed, then stores them all in one
+ * transaction, each behind a savepoint so that a failed request does not
+ * undo the others. Meanwhile other threads wait for their request to be
+ * processed, or lead the next group.
+ */
+final class GroupCommit {
+
+
+	private final Database db;
+	/**
+	 * How long (in milliseconds) a leader waits for more requests.
+	 */
+	final long window;
+	/**
+	 * Maximum number of requests per group.
+	 */
+	final int size;
+
+	private final ArrayList<Request> queue;
+	private final ReentrantLock lock;
+	private final Condition full;
+	private final Condition processed;
+	private boolean leading;
+
+
+	GroupCommit (Database db, long window, int size) {
+		if (window<0)
+			throw new OSQLException("Invalid group commit window: "+window);
+		if (size<2)
+			throw new OSQLException("Invalid group commit size: "+size);
+		this.db = db;
+		this.window = window;
+		this.size = size;
+		this.queue = new ArrayList<Request>();
+		this.lock = new ReentrantLock();
+		this.full = lock.newCondition();
+		this.processed = lock.newCondition();
+	}
+
+
+	/**
+	 * Stores this object along with concurrent requests, and returns once
+	 * the group it belongs to has been committed.
+	 *
+	 * @throws OSQLException	thrown if this request failed, or if the
+	 * 							group could not be committed
+	 */
+	void store (Connection conn, Object o, byte access)
+	throws OSQLAccessViolation, OSQLException {
+		Request r = new Request(conn, o, access);
+		lock.lock();
+		try {
+			queue.add(r);
+			if (queue.size()>=size)
+				full.signal();
+			while (!r.done) {
+				if (!leading && !queue.isEmpty())
+					lead();
+				else
+					processed.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (r.error instanceof OSQLException)
+			throw (OSQLException)r.error;
+		if (r.error instanceof RuntimeException)
+			throw (RuntimeException)r.error;
+		if (r.error instanceof Error)
+			throw (Error)r.error;
+	}
+
+
+	/**
+	 * Gathers a group and processes it. Called with the lock held.
+	 */
+	private void lead () {
+		leading = true;
+		ArrayList<Request> group;
+		try {
+			long left = TimeUnit.MILLISECONDS.toNanos(window);
+			while (queue.size()<size && left>0)
+				left = full.awaitNanos(left);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			int n = Math.min(size, queue.size());
+			group = new ArrayList<Request>(queue.subList(0, n));
+			queue.subList(0, n).clear();
+			// Let another thread gather the next group meanwhile
+			leading = false;
+			processed.signalAll();
+		}
+		lock.unlock();
+		try {
+			db.storeGroup(group);
+		} catch (Throwable t) {
+			// The whole group failed
+			for (int i=0; i<group.size(); i++)
+				if (group.get(i).error==null)
+					group.get(i).error = t;
+		} finally {
+			lock.lock();
+			for (int i=0; i<group.size(); i++)
+				group.get(i).done = true;
+			processed.signalAll();
+		}
+	}
+
+
+
+	/**
+	 * A store request waiting to be processed.
+	 */
+	static final class Request {
+
+		final Connection conn;
+		final Object object;
+		final byte access;
+		Throwable error;
+		boolean done;
+
+		Request (Connection conn, Object object, byte access) {
+			this.conn = conn;
+			this.object = object;
+			this.access = access;
+		}
+
+	}
+
+
+}
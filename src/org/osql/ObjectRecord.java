@@ -18,6 +18,7 @@ package org.osql;
 
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 
 public final class ObjectRecord {
@@ -49,6 +50,11 @@ public final class ObjectRecord {
     public static final byte RWRWR_   = 31;
     public static final byte RWRWRW   = 63;
     
+    /**
+     * Snapshot value of a column whose database value is not known.
+     */
+    static final Object UNKNOWN = new Object();
+    
     
     
     Integer id;
@@ -61,6 +67,15 @@ public final class ObjectRecord {
     short	gid;
     byte	access;
     
+    // Column values (all class levels) as committed to database, null if
+    // unknown, and as written by the request in progress
+    private State state;
+    private State staged;
+    // IDs of lazy references not fetched yet, by snapshot index
+    private Integer[] deferred;
+    // Expired from the second-level cache: values to be read again
+    private volatile boolean stale;
+    
     
 /*    ObjectRecord(ClassTable ct, User user, Integer oid, Object o, byte access) {
         this(ct, user.id, user.group, oid, o, access);
@@ -105,4 +120,192 @@ public final class ObjectRecord {
     	return object.get();
     }
     
+    
+    /**
+     * Returns the column values the request in progress writes, starting
+     * from committed ones.
+     * 
+     * @param size	the number of columns of the object class
+     */
+    State stage(int size) {
+    	if (staged==null) {
+    		staged = new State(size);
+    		if (state!=null && state.values.length==size) {
+    			System.arraycopy(state.values, 0, staged.values, 0, size);
+    			System.arraycopy(state.bits, 0, staged.bits, 0, size);
+    		} else
+    			Arrays.fill(staged.values, UNKNOWN);
+    	}
+    	return staged;
+    }
+    
+    
+    /**
+     * Returns the committed column values, <code>null</code> if they are
+     * unknown or a request is writing new ones.
+     */
+    State committed() {
+    	return staged==null ? state : null;
+    }
+    
+    
+    /**
+     * Sets the snapshot of committed column values, once restored.
+     */
+    void restored(State state) {
+    	this.state = state;
+    	this.staged = null;
+    	this.stale = false;
+    }
+    
+    
+    /**
+     * Marks the values of this object as to be read again from the
+     * database.
+     */
+    void expire() {
+    	stale = true;
+    }
+    
+    
+    /**
+     * Returns whether the values of this object are to be read again from
+     * the database.
+     */
+    boolean isStale() {
+    	return stale;
+    }
+    
+    
+    /**
+     * Makes staged column values the committed ones.
+     */
+    void commit() {
+    	if (staged==null)
+    		return;
+    	state = staged;
+    	staged = null;
+    }
+    
+    
+    /**
+     * Records a lazy reference left unfetched.
+     * 
+     * @param index	the snapshot index of the column
+     * @param oid	the ID of the referenced object
+     * @param size	the number of columns of the object class
+     */
+    synchronized void defer(int index, Integer oid, int size) {
+    	if (deferred==null)
+    		deferred = new Integer[size];
+    	deferred[index] = oid;
+    }
+    
+    
+    /**
+     * Returns the ID of the object this column references if it has not
+     * been fetched yet, <code>null</code> otherwise.
+     */
+    synchronized Integer deferred(int index) {
+    	return deferred==null ? null : deferred[index];
+    }
+    
+    
+    /**
+     * Returns whether some lazy references have not been fetched yet.
+     */
+    synchronized boolean hasDeferred() {
+    	return deferred!=null;
+    }
+    
+    
+    /**
+     * Records that this column now holds its referenced object.
+     */
+    synchronized void resolved(int index) {
+    	if (deferred==null)
+    		return;
+    	deferred[index] = null;
+    	for (int i=0; i<deferred.length; i++)
+    		if (deferred[i]!=null)
+    			return;
+    	deferred = null;
+    }
+    
+    
+    /**
+     * Returns a rough estimate of the memory (in bytes) this object and its
+     * record take, from committed column values.
+     */
+    int weight() {
+    	State s = state;
+    	int w = 96;
+    	if (s==null)
+    		return w;
+    	for (int i=0; i<s.values.length; i++) {
+    		Object v = s.values[i];
+    		w += 16;
+    		if (v instanceof String)
+    			w += 40+2*((String)v).length();
+    		else if (v instanceof byte[])
+    			w += 16+((byte[])v).length;
+    		else if (v!=null && v!=UNKNOWN)
+    			w += 16;
+    	}
+    	return w;
+    }
+    
+    
+    /**
+     * Forgets column values, after a rollback.
+     */
+    void invalidate() {
+    	state = null;
+    	staged = null;
+    }
+    
+    
+    
+    /**
+     * Column values of an object, by column index. Values of primitive
+     * columns are kept as raw bits (not boxed), others as objects. A value
+     * is unknown if it is {@link ObjectRecord#UNKNOWN}, whatever the type
+     * of its column.
+     */
+    static final class State {
+    	
+    	final Object[] values;
+    	final long[] bits;
+    	
+    	State(int size) {
+    		values = new Object[size];
+    		bits = new long[size];
+    	}
+    	
+    	/**
+    	 * Returns whether value <code>i</code> is known and the same as
+    	 * value <code>j</code> of <code>s</code>.
+    	 */
+    	boolean same(int i, State s, int j) {
+    		Object v = values[i];
+    		if (v==UNKNOWN)
+    			return false;
+    		if (v==null)
+    			return s.values[j]==null && bits[i]==s.bits[j];
+    		if (v instanceof byte[])
+    			return s.values[j] instanceof byte[] && Arrays.equals((byte[])v, (byte[])s.values[j]);
+    		return v.equals(s.values[j]);
+    	}
+    	
+    	/**
+    	 * Sets value <code>i</code> to value <code>j</code> of
+    	 * <code>s</code>.
+    	 */
+    	void set(int i, State s, int j) {
+    		values[i] = s.values[j];
+    		bits[i] = s.bits[j];
+    	}
+    	
+    }
+    
 }
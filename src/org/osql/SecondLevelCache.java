@@ -0,0 +1,575 @@
+/*
+ * Copyright (C) Olivier Cornu 2004-2009 <o.cornu@gmail.com>
+ *
+ * This is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.osql;
+
+
+import java.util.HashMap;
+
+
+/**
+ * Strong references to the most useful objects of a class hierarchy, so
+ * that they stay in its weak object cache even when no application uses
+ * them (e.g. currencies or countries, looked up all the time).
+ * <p>
+ * It is declared by the <code>OSQL_TABLE</code> properties of the top class
+ * of the hierarchy:
+ * <ul>
+ * <li><code>cache=lru</code>, <code>lfu</code> or <code>tinylfu</code>: the
+ * eviction policy</li>
+ * <li><code>cacheSize=n</code>: the maximum number of objects (default
+ * {@link #DEFAULT_SIZE} unless <code>cacheBytes</code> is set)</li>
+ * <li><code>cacheBytes=n</code>: the maximum estimated size of objects</li>
+ * <li><code>cacheTTL=n</code>: how long (in milliseconds) objects are kept
+ * before being read from the database again</li>
+ * </ul>
+ * <code>lru</code> evicts the least recently used object, <code>lfu</code>
+ * the least frequently used one. <code>tinylfu</code> (W-TinyLFU) keeps
+ * new objects in a small LRU window, then admits them in the main LRU
+ * segments only if they are used more often than the object they would
+ * evict, as estimated by a frequency sketch which forgets over time.
+ */
+public final class SecondLevelCache {
+
+
+	public static final String LRU = "lru";
+	public static final String LFU = "lfu";
+	public static final String TINY_LFU = "tinylfu";
+	/**
+	 * The default maximum number of objects.
+	 */
+	public static final int DEFAULT_SIZE = 1000;
+
+	// Segments of entries
+	private static final byte MAIN = 0;
+	private static final byte WINDOW = 1;
+	private static final byte PROBATION = 2;
+	private static final byte PROTECTED = 3;
+
+
+	/**
+	 * Told of objects dropped on expiry, whose values must be read from
+	 * the database again.
+	 */
+	interface Listener {
+		void expired (ObjectRecord r);
+	}
+
+
+	private final String policy;
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long ttl;
+	private final Listener listener;
+
+	private final HashMap<Integer,Entry> entries;
+	private long bytes;
+	// LRU: main; W-TinyLFU: window, probation and protected
+	private final Queue main;
+	private final Queue window;
+	private final Queue probation;
+	private final Queue protect;
+	// LFU: entries by use count, and the lowest count
+	private final HashMap<Integer,Queue> frequencies;
+	private int minFrequency;
+	// W-TinyLFU: estimated use counts of recent objects, cached or not
+	private final Sketch sketch;
+
+	// Metrics
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long expirations;
+
+
+	/**
+	 * @param maxEntries	the maximum number of objects, 0 for none
+	 * @param maxBytes		the maximum estimated size of objects, 0 for none
+	 * @param ttl			how long (in milliseconds) objects are kept, 0
+	 * 						for ever
+	 */
+	SecondLevelCache (String policy, int maxEntries, long maxBytes, long ttl, Listener listener) {
+		// Policies are then compared by reference
+		if (LRU.equalsIgnoreCase(policy))
+			policy = LRU;
+		else if (LFU.equalsIgnoreCase(policy))
+			policy = LFU;
+		else if (TINY_LFU.equalsIgnoreCase(policy))
+			policy = TINY_LFU;
+		else
+			throw new OSQLException("Unknown cache policy: '"+policy+"'");
+		if (maxEntries<0 || maxBytes<0 || ttl<0)
+			throw new OSQLException("Invalid cache bounds: "+maxEntries+" objects, "+maxBytes+" bytes, TTL "+ttl+"ms");
+		if (maxEntries==0 && maxBytes==0)
+			maxEntries = DEFAULT_SIZE;
+		this.policy = policy;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.ttl = ttl;
+		this.listener = listener;
+		this.entries = new HashMap<Integer,Entry>();
+		this.main = new Queue();
+		this.window = new Queue();
+		this.probation = new Queue();
+		this.protect = new Queue();
+		this.frequencies = new HashMap<Integer,Queue>();
+		this.sketch = policy==TINY_LFU ? new Sketch(maxEntries>0 ? maxEntries : DEFAULT_SIZE) : null;
+	}
+
+
+	/**
+	 * Returns the record of this object ID, <code>null</code> if not
+	 * cached.
+	 */
+	ObjectRecord get (Integer id) {
+		ObjectRecord expired;
+		synchronized (this) {
+			Entry e = entries.get(id);
+			if (sketch!=null)
+				sketch.increment(id);
+			if (e==null) {
+				misses++;
+				return null;
+			}
+			if (ttl==0 || System.currentTimeMillis()<e.expires) {
+				hits++;
+				touch(e);
+				return e.record;
+			}
+			remove(e);
+			expirations++;
+			misses++;
+			expired = e.record;
+		}
+		// Not holding this lock: the listener takes its own
+		listener.expired(expired);
+		return null;
+	}
+
+
+	/**
+	 * Caches the object of this record, or updates its entry.
+	 */
+	synchronized void put (ObjectRecord r) {
+		Object o = r.object();
+		if (o==null || r.id==null)
+			return;
+		Entry e = entries.get(r.id);
+		if (e!=null) {
+			bytes -= e.weight;
+			e.record = r;
+			e.object = o;
+			e.weight = r.weight();
+			bytes += e.weight;
+			e.expires = System.currentTimeMillis()+ttl;
+			touch(e);
+		} else {
+			e = new Entry(r.id, r, o, r.weight(), System.currentTimeMillis()+ttl);
+			entries.put(e.id, e);
+			bytes += e.weight;
+			add(e);
+		}
+		evict();
+	}
+
+
+	/**
+	 * Drops the object of this ID, if cached.
+	 */
+	synchronized void remove (Integer id) {
+		Entry e = entries.get(id);
+		if (e!=null)
+			remove(e);
+	}
+
+
+	/**
+	 * Records a use of this entry.
+	 */
+	private void touch (Entry e) {
+		if (policy==LFU) {
+			Queue q = e.bucket;
+			q.remove(e);
+			if (q.isEmpty()) {
+				frequencies.remove(q.frequency);
+				if (minFrequency==e.frequency)
+					minFrequency++;
+			}
+			e.frequency++;
+			e.bucket = bucket(e.frequency);
+			e.bucket.addLast(e);
+		} else if (policy==TINY_LFU) {
+			switch (e.segment) {
+			case WINDOW:
+				window.remove(e);
+				window.addLast(e);
+				break;
+			case PROBATION:
+				// Used again: promote it, demoting the oldest protected one
+				probation.remove(e);
+				e.segment = PROTECTED;
+				protect.addLast(e);
+				if (protect.size>Math.max(1, capacity()*8/10)) {
+					Entry d = protect.first();
+					protect.remove(d);
+					d.segment = PROBATION;
+					probation.addLast(d);
+				}
+				break;
+			default:
+				protect.remove(e);
+				protect.addLast(e);
+			}
+		} else {
+			main.remove(e);
+			main.addLast(e);
+		}
+	}
+
+
+	/**
+	 * Adds a new entry to its policy structures.
+	 */
+	private void add (Entry e) {
+		if (policy==LFU) {
+			e.frequency = 1;
+			minFrequency = 1;
+			e.bucket = bucket(1);
+			e.bucket.addLast(e);
+		} else if (policy==TINY_LFU) {
+			e.segment = WINDOW;
+			window.addLast(e);
+			// Objects leaving the window are candidates for the main space
+			int w = Math.max(1, capacity()/100);
+			while (window.size>w) {
+				Entry c = window.first();
+				window.remove(c);
+				c.segment = PROBATION;
+				probation.addLast(c);
+			}
+		} else {
+			e.segment = MAIN;
+			main.addLast(e);
+		}
+	}
+
+
+	/**
+	 * Evicts entries until the cache is within its bounds.
+	 */
+	private void evict () {
+		while ((maxEntries>0 && entries.size()>maxEntries) || (maxBytes>0 && bytes>maxBytes && entries.size()>1)) {
+			Entry victim;
+			if (policy==LFU) {
+				Queue q;
+				while ((q = frequencies.get(Integer.valueOf(minFrequency)))==null)
+					minFrequency++;
+				victim = q.first();
+			} else if (policy==TINY_LFU) {
+				victim = probation.first();
+				Entry candidate = probation.last();
+				if (victim==null)
+					victim = protect.isEmpty() ? window.first() : protect.first();
+				else if (candidate!=victim && sketch.frequency(candidate.id)<=sketch.frequency(victim.id))
+					// Not used more than the object it would replace
+					victim = candidate;
+			} else
+				victim = main.first();
+			remove(victim);
+			evictions++;
+		}
+	}
+
+
+	private void remove (Entry e) {
+		entries.remove(e.id);
+		bytes -= e.weight;
+		if (policy==LFU) {
+			Queue q = e.bucket;
+			q.remove(e);
+			if (q.isEmpty())
+				frequencies.remove(q.frequency);
+			return;
+		}
+		switch (e.segment) {
+		case WINDOW:
+			window.remove(e);
+			break;
+		case PROBATION:
+			probation.remove(e);
+			break;
+		case PROTECTED:
+			protect.remove(e);
+			break;
+		default:
+			main.remove(e);
+		}
+	}
+
+
+	private Queue bucket (int frequency) {
+		Integer f = Integer.valueOf(frequency);
+		Queue q = frequencies.get(f);
+		if (q==null) {
+			q = new Queue(f);
+			frequencies.put(f, q);
+		}
+		return q;
+	}
+
+
+	/**
+	 * Returns the number of objects segments are sized after.
+	 */
+	private int capacity () {
+		return maxEntries>0 ? maxEntries : Math.max(entries.size(), DEFAULT_SIZE);
+	}
+
+
+	public String getPolicy () {
+		return policy;
+	}
+
+
+	/**
+	 * Returns how many objects are cached.
+	 */
+	public synchronized int getSize () {
+		return entries.size();
+	}
+
+
+	/**
+	 * Returns the estimated size (in bytes) of cached objects.
+	 */
+	public synchronized long getBytes () {
+		return bytes;
+	}
+
+
+	/**
+	 * Returns how many lookups found their object here.
+	 */
+	public synchronized long getHits () {
+		return hits;
+	}
+
+
+	/**
+	 * Returns how many lookups did not find their object here (whether or
+	 * not it was still in the weak object cache).
+	 */
+	public synchronized long getMisses () {
+		return misses;
+	}
+
+
+	/**
+	 * Returns how many objects were evicted to keep within bounds.
+	 */
+	public synchronized long getEvictions () {
+		return evictions;
+	}
+
+
+	/**
+	 * Returns how many objects were dropped on expiry.
+	 */
+	public synchronized long getExpirations () {
+		return expirations;
+	}
+
+
+	public synchronized String toString () {
+		StringBuffer sb = new StringBuffer("Second-level cache (");
+		sb.append(policy);
+		sb.append("): ");
+		sb.append(entries.size());
+		sb.append(" objects, ");
+		sb.append(bytes);
+		sb.append(" bytes, ");
+		sb.append(hits);
+		sb.append(" hits, ");
+		sb.append(misses);
+		sb.append(" misses, ");
+		sb.append(evictions);
+		sb.append(" evictions, ");
+		sb.append(expirations);
+		sb.append(" expirations");
+		return sb.toString();
+	}
+
+
+
+	/**
+	 * A cached object, linked in the queue of its segment or use count.
+	 */
+	private static final class Entry {
+
+		final Integer id;
+		ObjectRecord record;
+		// Keeps the object in the weak object cache
+		Object object;
+		int weight;
+		long expires;
+		int frequency;
+		// LFU: the queue of its frequency
+		Queue bucket;
+		byte segment;
+		Entry prev;
+		Entry next;
+
+		Entry (Integer id, ObjectRecord record, Object object, int weight, long expires) {
+			this.id = id;
+			this.record = record;
+			this.object = object;
+			this.weight = weight;
+			this.expires = expires;
+		}
+
+	}
+
+
+
+	/**
+	 * A doubly-linked list of entries, oldest first.
+	 */
+	private static final class Queue {
+
+		// Sentinel: head.next is the first entry, head.prev the last one
+		private final Entry head;
+		int size;
+		// LFU: the use count of its entries, and its key
+		final Integer frequency;
+
+		Queue () {
+			this(null);
+		}
+
+		Queue (Integer frequency) {
+			this.frequency = frequency;
+			head = new Entry(null, null, null, 0, 0);
+			head.prev = head.next = head;
+		}
+
+		boolean isEmpty () {
+			return size==0;
+		}
+
+		Entry first () {
+			return size==0 ? null : head.next;
+		}
+
+		Entry last () {
+			return size==0 ? null : head.prev;
+		}
+
+		void addLast (Entry e) {
+			e.prev = head.prev;
+			e.next = head;
+			head.prev.next = e;
+			head.prev = e;
+			size++;
+		}
+
+		void remove (Entry e) {
+			e.prev.next = e.next;
+			e.next.prev = e.prev;
+			e.prev = e.next = null;
+			size--;
+		}
+
+	}
+
+
+
+	/**
+	 * A count-min sketch of 4-bit counters estimating how often object IDs
+	 * were looked up. All counts are halved once enough lookups have been
+	 * recorded, so that past popularity fades.
+	 */
+	private static final class Sketch {
+
+		// 16 counters per long
+		private final long[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int samples;
+
+		Sketch (int capacity) {
+			int n = 1;
+			while (n<capacity)
+				n <<= 1;
+			this.table = new long[Math.max(n/4, 4)];
+			this.mask = table.length-1;
+			this.sampleSize = 10*Math.max(capacity, 16);
+		}
+
+		/**
+		 * Returns the estimated number of lookups of this ID.
+		 */
+		int frequency (Integer id) {
+			int h = spread(id.hashCode());
+			int f = 15;
+			for (int i=0; i<4; i++)
+				f = Math.min(f, counter(h, i));
+			return f;
+		}
+
+		void increment (Integer id) {
+			int h = spread(id.hashCode());
+			boolean added = false;
+			for (int i=0; i<4; i++) {
+				int index = index(h, i);
+				int shift = shift(h, i);
+				if (((table[index]>>>shift)&0xfL)<15) {
+					table[index] += 1L<<shift;
+					added = true;
+				}
+			}
+			if (added && ++samples>=sampleSize)
+				reset();
+		}
+
+		private int counter (int h, int i) {
+			return (int)((table[index(h, i)]>>>shift(h, i))&0xfL);
+		}
+
+		private int index (int h, int i) {
+			int x = h*(0x9e3779b9+2*i+1);
+			return (x>>>16)&mask;
+		}
+
+		private int shift (int h, int i) {
+			int x = h*(0x85ebca6b+2*i+1);
+			return ((x>>>28)&0xf)<<2;
+		}
+
+		private void reset () {
+			for (int i=0; i<table.length; i++)
+				table[i] = (table[i]>>>1)&0x7777777777777777L;
+			samples /= 2;
+		}
+
+		private static int spread (int x) {
+			x = ((x>>>16)^x)*0x45d9f3b;
+			return (x>>>16)^x;
+		}
+
+	}
+
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) Olivier Cornu 2004-2009 <o.cornu@gmail.com>
+ *
+ * This is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.osql;
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Object ID allocator of an auto-indexed class hierarchy.
+ * <p>
+ * IDs are reserved by blocks (hi/lo) in the <code>.Sequence</code> system
+ * table, so that new objects get their ID without querying the database
+ * after each <code>INSERT</code>. IDs left in a block when the database is
+ * closed are lost.
+ */
+final class Sequence {
+
+
+    static final String OSQL_TABLE_NAME = ".Sequence";
+    /**
+     * How many IDs are reserved at once.
+     */
+    static final int BLOCK_SIZE = 1000;
+
+
+    /**
+     * Top <code>ClassTable</code> of the hierarchy.
+     */
+    private final ClassTable table;
+    private int next;
+    private int limit;
+    // Not a monitor: reserving a block blocks on SQL requests
+    private final ReentrantLock lock;
+
+
+    Sequence (ClassTable table) {
+    	this.table = table;
+    	this.lock = new ReentrantLock();
+    }
+
+
+    /**
+     * Returns a new object ID, reserving a new block of IDs if need be.
+     *
+     * @param db	the database the class hierarchy is stored in
+     * @return		a new object ID
+     * @throws OSQLException	thrown if no block of IDs could be reserved
+     */
+    int next (Database db)
+    throws OSQLException {
+    	lock.lock();
+    	try {
+	    	if (next==limit) {
+	    		next = reserve(db);
+	    		limit = next+BLOCK_SIZE;
+	    	}
+	    	return next++;
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+
+    /**
+     * Reserves a block of IDs in system table, starting from the greatest
+     * ID in use the first time. The counter is increased before it is read,
+     * in the same transaction, so that databases sharing the system table
+     * never get the same block.
+     */
+    private int reserve (Database db)
+    throws OSQLException {
+    	Statement s = db.system.statement;
+        StringBuffer q = new StringBuffer();
+        db.systemLock.lock();
+        try {
+        	int first;
+        	if (s.executeUpdate(increment(q))==0) {
+	        	// First block: skip IDs already given by the database
+	        	q.setLength(0);
+	        	q.append("SELECT MAX(\"");
+	        	q.append(table.table.primaryKey);
+	        	q.append("\") FROM \"");
+	        	q.append(table.table.name);
+	        	q.append("\"");
+	        	ResultSet rs = s.executeQuery(q.toString());
+	        	first = 0;
+	        	if (rs.next()) {
+	        		first = rs.getInt(1)+1;
+	        		if (rs.wasNull())
+	        			first = 0;
+	        	}
+	        	rs.close();
+	        	q.setLength(0);
+	        	q.append("INSERT INTO \"");
+	        	q.append(OSQL_TABLE_NAME);
+	        	q.append("\" VALUES (");
+	        	q.append(table.id);
+	        	q.append(", ");
+	        	q.append(first+BLOCK_SIZE);
+	        	q.append(")");
+	        	try {
+	        		s.executeUpdate(q.toString());
+	        	} catch (SQLException e) {
+	        		// Another database inserted it meanwhile: take the next block
+	        		db.system.connection.rollback();
+	        		if (s.executeUpdate(increment(q))==0)
+	        			throw e;
+	        		first = reserved(s, q);
+	        	}
+        	} else
+        		first = reserved(s, q);
+	        db.system.connection.commit();
+	        return first;
+        } catch (SQLException e) {
+        	try {
+        		db.system.connection.rollback();
+        	} catch (SQLException ee) {}
+            throw new OSQLException("Could not reserve IDs for class "+table.className+".\nQuery:  "+q.toString(), e);
+        } finally {
+        	db.systemLock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns the statement increasing the counter of this hierarchy by a
+     * block, built in <code>q</code>.
+     */
+    private String increment (StringBuffer q) {
+    	q.setLength(0);
+    	q.append("UPDATE \"");
+    	q.append(OSQL_TABLE_NAME);
+    	q.append("\" SET \"next\"=\"next\"+");
+    	q.append(BLOCK_SIZE);
+    	q.append(" WHERE \"id\"=");
+    	q.append(table.id);
+    	return q.toString();
+    }
+
+
+    /**
+     * Returns the first ID of the block just reserved by increasing the
+     * counter.
+     */
+    private int reserved (Statement s, StringBuffer q)
+    throws SQLException {
+    	q.setLength(0);
+        q.append("SELECT \"next\" FROM \"");
+        q.append(OSQL_TABLE_NAME);
+        q.append("\" WHERE \"id\"=");
+        q.append(table.id);
+        ResultSet rs = s.executeQuery(q.toString());
+        try {
+        	if (!rs.next())
+        		throw new SQLException("No ID counter for class "+table.className);
+        	return rs.getInt(1)-BLOCK_SIZE;
+        } finally {
+        	rs.close();
+        }
+    }
+
+
+    /**
+     * Creates the system table.
+     */
+    static void createTable (Statement s)
+    throws SQLException {
+    	s.executeUpdate("CREATE TABLE \""+OSQL_TABLE_NAME+"\" ("+
+                " \"id\" SMALLINT NOT NULL"+
+                ", \"next\" INTEGER NOT NULL"+
+                ", PRIMARY KEY (\"id\")"+
+                ", FOREIGN KEY (\"id\") REFERENCES \""+ClassTable.OSQL_TABLE_NAME+"\" (\"id\") ON DELETE CASCADE"+
+                " )");
+    }
+
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) Olivier Cornu 2004-2009 <o.cornu@gmail.com>
+ *
+ * This is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.osql;
+
+
+import java.lang.ref.SoftReference;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Stack;
+
+
+/**
+ * A physical connection to the SQL database, along with its request
+ * statement and its prepared statements.
+ * <p>
+ * A <code>Session</code> is leased from a {@link ConnectionPool} by one
+ * thread at a time, hence it needs no synchronization.
+ */
+final class Session {
+
+
+	/**
+	 * SQL <code>Connection</code> to the database.
+	 */
+	final java.sql.Connection connection;
+	/**
+	 * Request statement.
+	 */
+	final Statement statement;
+	/**
+	 * The maximum number of prepared statement pools kept.
+	 */
+	static final int POOLS = 256;
+
+
+	/**
+	 * Prepared statement pools, by SQL query, least recently used first.
+	 */
+	private final LinkedHashMap<String,StatementPool> pools;
+
+
+	Session (java.sql.Connection connection)
+	throws SQLException {
+		this.connection = connection;
+		this.statement = connection.createStatement();
+        // Set autocommit to off, so we can rollback in case of error
+		this.connection.setAutoCommit(false);
+		this.connection.commit();
+		this.pools = new LinkedHashMap<String,StatementPool>(16, 0.75f, true);
+	}
+
+
+	/**
+	 * Returns the pool of prepared statements for this SQL query. Beyond
+	 * {@link #POOLS} queries, the least recently used pool is closed.
+	 *
+	 * @param query	the SQL query to prepare
+	 * @return		the associated <code>StatementPool</code>
+	 */
+	StatementPool pool (String query) {
+		StatementPool pool = pools.get(query);
+		if (pool==null) {
+			pool = new StatementPool(connection, query);
+			pools.put(query, pool);
+			if (pools.size()>POOLS) {
+				Iterator<StatementPool> i = pools.values().iterator();
+				StatementPool eldest = i.next();
+				i.remove();
+				eldest.close();
+			}
+		}
+		return pool;
+	}
+
+
+	/**
+	 * Closes all statements and the physical connection.
+	 */
+	void close () {
+		Iterator<StatementPool> i = pools.values().iterator();
+		while (i.hasNext())
+			i.next().close();
+		pools.clear();
+		try {
+			statement.close();
+		} catch (SQLException e) {}
+		try {
+			connection.close();
+		} catch (SQLException e) {}
+	}
+
+
+
+    /**
+     * A pool of SQL prepared statements designed to speed up request processing
+     * time under heavy load without hurting memory footprint.
+     * <p>
+     * Recursive storage of objects from the same class needs several
+     * statements for the same query at once, hence the pool.
+     */
+    static final class StatementPool {
+
+
+    	/**
+    	 * SQL <code>Connection</code> to the database.
+    	 */
+    	private final java.sql.Connection conn;
+    	/**
+    	 * <code>PreparedStatement</code> definition.
+    	 */
+    	private final String statement;
+    	/**
+    	 * Stack caching available prepared statements.
+    	 * Each <code>PreparedStatement</code> is wrapped into a
+    	 * <code>SoftReference</code> to allow garbage-collection of unused
+    	 * statements.
+    	 */
+    	private final Stack<SoftReference<PreparedStatement>> cache;
+    	/**
+    	 * Whether this pool has been closed: statements still in use are
+    	 * closed once released.
+    	 */
+    	private boolean closed;
+
+
+    	private StatementPool(java.sql.Connection conn, String statement) {
+    		this.conn = conn;
+    		this.statement = statement;
+    		this.cache = new Stack<SoftReference<PreparedStatement>>();
+    	}
+
+
+    	PreparedStatement get()
+    	throws OSQLException {
+    		SoftReference<PreparedStatement> ref;
+    		PreparedStatement ps;
+    		// Attempt to find a free PS
+    		while (!cache.isEmpty()) {
+    			ref = cache.pop();
+    			ps = ref.get();
+    			if (ps!=null)
+    				return ps;
+    		}
+    		// No PS available, create a new one
+    		try {
+    			return conn.prepareStatement(statement);
+    		} catch (SQLException e) {
+                throw new OSQLException("Could not create SQL statement:\n"+statement, e);
+    		}
+    	}
+
+
+    	void release(PreparedStatement ps) {
+    		if (closed) {
+    			try {
+    				ps.close();
+    			} catch (SQLException e) {}
+    			return;
+    		}
+    		cache.push(new SoftReference<PreparedStatement>(ps));
+    	}
+
+
+    	private void close () {
+    		closed = true;
+        	SoftReference<PreparedStatement> ref;
+        	PreparedStatement ps;
+        	while (!cache.isEmpty()) {
+    			ref = cache.pop();
+    			ps = ref.get();
+    			if (ps==null)
+    				continue;
+    			// Attempt to close SQL statement
+		    	try {
+	                ps.close();
+		    	} catch (SQLException e) {}
+        	}
+    	}
+
+    }
+
+
+}
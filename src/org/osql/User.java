@@ -58,8 +58,8 @@ class User {
         q.append("'");
         ResultSet rs;
         try {
-            rs = db.statement.executeQuery(q.toString());
-            db.connection.commit();
+            rs = db.system.statement.executeQuery(q.toString());
+            db.system.connection.commit();
         } catch (SQLException e) {
             throw new OSQLException("System table \""+OSQL_TABLE_NAME+"\" is probably missing.\nCould not execute SQL query: "+q.toString(), e);
         }
@@ -115,7 +115,7 @@ class User {
         q.append("\" ORDER BY \"id\" DESC");
         ResultSet rs;
         try {
-            rs = db.statement.executeQuery(q.toString());
+            rs = db.system.statement.executeQuery(q.toString());
         } catch (SQLException e) {
             throw new OSQLException("System table \""+OSQL_TABLE_NAME+"\" is probably missing.\nCould not execute SQL query: "+q.toString(), e);
         }
@@ -152,7 +152,7 @@ class User {
         q.append(mainGroup);
         q.append(", NULL)");
         try {
-            db.statement.executeUpdate(q.toString());
+            db.system.statement.executeUpdate(q.toString());
         } catch (SQLException e) {
             throw new OSQLAccessViolation("User already exists: "+login, e);
         }
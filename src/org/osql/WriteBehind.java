@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) Olivier Cornu 2004-2009 <o.cornu@gmail.com>
+ *
+ * This is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.osql;
+
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Deferred storage of objects whose class has the
+ * <code>writeBehind=true</code> table property.
+ * <p>
+ * Storing such an object only queues it: a background thread writes queued
+ * objects every {@link #DEFAULT_INTERVAL} milliseconds (or as set by
+ * {@link #setInterval(long)}), in batches. An object stored several times
+ * before being written is written once, with its latest state.
+ * <p>
+ * Queries on a class hierarchy with pending objects write them first, so
+ * that they see their latest state. Pending objects are lost if the JVM
+ * stops before the database is closed.
+ */
+public final class WriteBehind {
+
+
+	/**
+	 * The default delay (in milliseconds) between two writes.
+	 */
+	public static final long DEFAULT_INTERVAL = 1000;
+
+
+	private final Database db;
+	private volatile long interval;
+
+	/**
+	 * Objects waiting to be written, with the connection and access rights
+	 * they were stored with.
+	 */
+	private IdentityHashMap<Object,GroupCommit.Request> queue;
+	/**
+	 * Top <code>ClassTable</code>s of the hierarchies pending objects belong
+	 * to.
+	 */
+	private HashSet<ClassTable> hierarchies;
+	/**
+	 * When the oldest pending object was queued.
+	 */
+	private long since;
+	private final ReentrantLock lock;
+	private final Condition wake;
+	/**
+	 * Writes are serialized, to keep them in order.
+	 */
+	private final ReentrantLock flushLock;
+	private Thread flusher;
+	private boolean closed;
+
+	// Metrics
+	private long written;
+	private long coalesced;
+	private long failed;
+	private long flushes;
+
+
+	WriteBehind (Database db) {
+		this.db = db;
+		this.interval = DEFAULT_INTERVAL;
+		this.queue = new IdentityHashMap<Object,GroupCommit.Request>();
+		this.hierarchies = new HashSet<ClassTable>();
+		this.lock = new ReentrantLock();
+		this.wake = lock.newCondition();
+		this.flushLock = new ReentrantLock();
+	}
+
+
+	/**
+	 * Queues this object for writing, starting the background thread on
+	 * first use.
+	 */
+	void store (Connection conn, ClassTable ct, Object o, byte access)
+	throws OSQLException {
+		lock.lock();
+		try {
+			if (closed)
+				throw new OSQLException("Database is closed.");
+			if (queue.isEmpty())
+				since = System.currentTimeMillis();
+			if (queue.put(o, new GroupCommit.Request(conn, o, access))!=null)
+				coalesced++;
+			hierarchies.add(ct.topClassTable);
+			if (flusher==null) {
+				flusher = new Thread(new Runnable() {
+					public void run () {
+						loop();
+					}
+				}, "osql-write-behind");
+				flusher.setDaemon(true);
+				flusher.start();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Removes this object from the queue.
+	 *
+	 * @return	<code>true</code> if it was waiting to be written
+	 */
+	boolean cancel (Object o) {
+		lock.lock();
+		try {
+			return queue.remove(o)!=null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Writes all pending objects now.
+	 *
+	 * @throws OSQLException	thrown if they could not be written, in which
+	 * 							case they stay queued; objects which fail on
+	 * 							their own are only counted and logged
+	 */
+	public void flush ()
+	throws OSQLException {
+		flushLock.lock();
+		try {
+			ArrayList<GroupCommit.Request> batch;
+			HashSet<ClassTable> tops;
+			long first;
+			lock.lock();
+			try {
+				if (queue.isEmpty())
+					return;
+				batch = new ArrayList<GroupCommit.Request>(queue.values());
+				queue = new IdentityHashMap<Object,GroupCommit.Request>();
+				tops = hierarchies;
+				hierarchies = new HashSet<ClassTable>();
+				first = since;
+			} finally {
+				lock.unlock();
+			}
+			int n;
+			try {
+				n = db.storeBehind(batch);
+			} catch (OSQLException e) {
+				// Queue objects back, unless they were stored again since
+				lock.lock();
+				try {
+					IdentityHashMap<Object,GroupCommit.Request> q = new IdentityHashMap<Object,GroupCommit.Request>();
+					for (int k=0; k<batch.size(); k++)
+						q.put(batch.get(k).object, batch.get(k));
+					q.putAll(queue);
+					queue = q;
+					hierarchies.addAll(tops);
+					since = first;
+				} finally {
+					lock.unlock();
+				}
+				throw e;
+			}
+			lock.lock();
+			try {
+				flushes++;
+				written += batch.size()-n;
+				failed += n;
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Writes all pending objects now if some belong to the hierarchy of this
+	 * top <code>ClassTable</code>.
+	 */
+	void flush (ClassTable top)
+	throws OSQLException {
+		lock.lock();
+		try {
+			if (!hierarchies.contains(top))
+				return;
+		} finally {
+			lock.unlock();
+		}
+		flush();
+	}
+
+
+	/**
+	 * Sets the delay between two writes.
+	 *
+	 * @param interval	the delay, in milliseconds
+	 */
+	public void setInterval (long interval) {
+		if (interval<1)
+			throw new OSQLException("Invalid write-behind interval: "+interval);
+		this.interval = interval;
+		lock.lock();
+		try {
+			wake.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Returns how many objects are waiting to be written.
+	 */
+	public int getPending () {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Returns how long (in milliseconds) the oldest pending object has been
+	 * waiting, <code>0</code> if none is.
+	 */
+	public long getLag () {
+		lock.lock();
+		try {
+			return queue.isEmpty() ? 0 : System.currentTimeMillis()-since;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Returns how many objects have been written.
+	 */
+	public long getWritten () {
+		lock.lock();
+		try {
+			return written;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Returns how many stores were merged into an already pending one.
+	 */
+	public long getCoalesced () {
+		lock.lock();
+		try {
+			return coalesced;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Returns how many objects could not be written.
+	 */
+	public long getFailed () {
+		lock.lock();
+		try {
+			return failed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Returns how many batches have been written.
+	 */
+	public long getFlushes () {
+		lock.lock();
+		try {
+			return flushes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Stops the background thread and writes pending objects.
+	 */
+	void close ()
+	throws OSQLException {
+		Thread t;
+		lock.lock();
+		try {
+			closed = true;
+			wake.signal();
+			t = flusher;
+		} finally {
+			lock.unlock();
+		}
+		if (t!=null)
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		flush();
+	}
+
+
+	/**
+	 * Background thread body.
+	 */
+	private void loop () {
+		while (true) {
+			lock.lock();
+			try {
+				if (closed)
+					return;
+				try {
+					wake.await(interval, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (closed)
+					return;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				flush();
+			} catch (OSQLException e) {
+				// Objects are retried next time: let the administrator know
+				db.out.println("*** Write-behind failed: "+e.getMessage());
+			}
+		}
+	}
+
+
+	public String toString () {
+		StringBuffer sb = new StringBuffer("Write-behind: ");
+		lock.lock();
+		try {
+			sb.append(queue.size());
+			sb.append(" pending, lag ");
+			sb.append(queue.isEmpty() ? 0 : System.currentTimeMillis()-since);
+			sb.append("ms, ");
+			sb.append(written);
+			sb.append(" written, ");
+			sb.append(coalesced);
+			sb.append(" coalesced, ");
+			sb.append(failed);
+			sb.append(" failed, ");
+			sb.append(flushes);
+			sb.append(" flushes");
+		} finally {
+			lock.unlock();
+		}
+		return sb.toString();
+	}
+
+
+}
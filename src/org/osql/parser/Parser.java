@@ -8,12 +8,22 @@ import org.osql.*;
 
 public class Parser implements ParserConstants {
 
+  // Whether fields are named after the table holding them, for queries
+  // made without the view of the class, rather than after the view
+  public boolean qualified;
+
 // ==================================================
   final public void Where(Database db, ClassTable t, StringBuffer w, StringBuffer f, StringBuffer j) throws ParseException, OSQLException {
     Expression(db, t, w, f, j);
     jj_consume_token(0);
   }
 
+// A single field path, as selected by projections
+  final public void Path(Database db, ClassTable t, StringBuffer w, StringBuffer f, StringBuffer j) throws ParseException, OSQLException {
+    Term(db, t, w, f, j);
+    jj_consume_token(0);
+  }
+
   final public void Expression(Database db, ClassTable t, StringBuffer w, StringBuffer f, StringBuffer j) throws ParseException, OSQLException {
     switch ((jj_ntk==-1)?jj_ntk():jj_ntk) {
     case NOT:
@@ -82,6 +92,7 @@ public class Parser implements ParserConstants {
     case FLOAT:
     case PLUS:
     case MINUS:
+    case PARAM:
       Value(db, t, w, f, j);
       switch ((jj_ntk==-1)?jj_ntk():jj_ntk) {
       case SMALLEROREQ:
@@ -252,6 +263,8 @@ public class Parser implements ParserConstants {
         Token token;
         String last;
         ClassTable sub;
+        ClassTable root = t;
+        ClassTable d;
         StringBuffer label;
         int deep = 0;
     switch ((jj_ntk==-1)?jj_ntk():jj_ntk) {
@@ -279,6 +292,10 @@ public class Parser implements ParserConstants {
       jj_consume_token(NULL);
                                           w.append("NULL");
       break;
+    case PARAM:
+      jj_consume_token(PARAM);
+                                          w.append("?");
+      break;
     case SUPER:
     case FIELD:
                   label=new StringBuffer("\"");
@@ -335,7 +352,27 @@ public class Parser implements ParserConstants {
                                                                   deep++;
       }
                   label.append("\"");
-                  w.append(label);
+                  if (!qualified)
+                          w.append(label);
+                  else if (deep>0) {
+                          w.append("\"");
+                          w.append(sub.table.name);
+                          w.append("\".\"");
+                          w.append(last);
+                          w.append("\"");
+                  } else {
+                          // IDs are shared by the whole hierarchy
+                          d = last.equals(root.table.primaryKey) ? root : t.declaring(last);
+                          if (d==null)
+                                  w.append(label);
+                          else {
+                                  w.append("\"");
+                                  w.append(d.table.name);
+                                  w.append("\".\"");
+                                  w.append(last);
+                                  w.append("\"");
+                          }
+                  }
                   if (deep>0) {
                           f.append(", \"");
                           f.append(sub.table.name);
@@ -372,7 +409,7 @@ public class Parser implements ParserConstants {
       jj_la1_0 = new int[] {0x100,0x600,0x600,0x100,0x1f800,0x100,0x80000000,0xa0000,0xff900,0x28700040,0x0,0x0,0x0,0x0,0x20000000,0x40000000,0x28700000,};
    }
    private static void jj_la1_1() {
-      jj_la1_1 = new int[] {0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x1b1,0x180,0x180,0x780,0x780,0x0,0x0,0x31,};
+      jj_la1_1 = new int[] {0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x0,0x9b1,0x180,0x180,0x780,0x780,0x0,0x0,0x831,};
    }
 
   public Parser(java.io.InputStream stream) {
@@ -477,8 +514,8 @@ public class Parser implements ParserConstants {
 
   public ParseException generateParseException() {
     jj_expentries.removeAllElements();
-    boolean[] la1tokens = new boolean[43];
-    for (int i = 0; i < 43; i++) {
+    boolean[] la1tokens = new boolean[44];
+    for (int i = 0; i < 44; i++) {
       la1tokens[i] = false;
     }
     if (jj_kind >= 0) {
@@ -497,7 +534,7 @@ public class Parser implements ParserConstants {
         }
       }
     }
-    for (int i = 0; i < 43; i++) {
+    for (int i = 0; i < 44; i++) {
       if (la1tokens[i]) {
         jj_expentry = new int[1];
         jj_expentry[0] = i;
@@ -39,6 +39,7 @@ public interface ParserConstants {
   int MINUS = 40;
   int MULT = 41;
   int DIV = 42;
+  int PARAM = 43;
 
   int DEFAULT = 0;
   int _STRING = 1;
@@ -87,6 +88,7 @@ public interface ParserConstants {
     "\"-\"",
     "\"*\"",
     "\"/\"",
+    "\"?\"",
   };
 
 }
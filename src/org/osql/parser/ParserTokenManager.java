@@ -124,6 +124,8 @@ private final int jjMoveStringLiteralDfa0_0()
       case 62:
          jjmatchedKind = 16;
          return jjMoveStringLiteralDfa1_0(0x1000L);
+      case 63:
+         return jjStopAtPos(0, 43);
       case 65:
       case 97:
          return jjMoveStringLiteralDfa1_0(0x200L);
@@ -684,17 +686,17 @@ public static final String[] jjstrLiteralImages = {
 "", null, null, null, null, null, "\50", "\51", null, null, null, "\74\75", 
 "\76\75", null, "\75", "\74", "\76", null, null, null, null, null, null, null, null, 
 null, null, null, null, null, "\56", "\54", null, null, null, null, null, null, null, 
-"\53", "\55", "\52", "\57", };
+"\53", "\55", "\52", "\57", "\77", };
 public static final String[] lexStateNames = {
    "DEFAULT", 
    "_STRING", 
 };
 public static final int[] jjnewLexState = {
    -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 
-   -1, 1, -1, 0, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 
+   -1, 1, -1, 0, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 
 };
 static final long[] jjtoToken = {
-   0x7b1ebffffc1L, 
+   0xfb1ebffffc1L, 
 };
 static final long[] jjtoSkip = {
    0x1400003eL, 